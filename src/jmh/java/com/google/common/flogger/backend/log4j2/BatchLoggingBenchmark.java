@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.MetadataKey;
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.context.ScopedLoggingContext;
+import com.google.common.flogger.context.Tags;
+import com.google.common.flogger.grpc.GrpcContextDataProvider;
+import com.google.common.flogger.testing.FakeLogData;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.appender.NullAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost per event of logging 1000 statements one by one and as a batch via {@link
+ * Log4j2BatchLogger}, within a scope with metadata and tags, to a null appender.
+ *
+ * <p>The difference is what a batch saves in the backend: looking up the scope, converting its
+ * context and cloning the context stack once instead of per event. Appender locking is the same in
+ * both cases (log4j2 appends one event at a time), which the null appender, having no lock, leaves
+ * out of the picture. Run with {@code ./gradlew jmh -Dflogger.log4j2.dispatch=nonblocking} to include
+ * the dispatch lock, which a batch takes once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BatchLoggingBenchmark {
+    private static final int BATCH_SIZE = 1000;
+    private static final MetadataKey<String> JOB_KEY = MetadataKey.single("job", String.class);
+
+    private Logger logger;
+    private NullAppender appender;
+    private Log4j2LoggerBackend backend;
+    private Log4j2BatchLogger batchLogger;
+    private List<LogData> batch;
+
+    @Setup
+    public void setUp() {
+        logger = (Logger) LogManager.getLogger(BatchLoggingBenchmark.class.getName());
+        appender = NullAppender.createAppender("Null");
+        appender.start();
+        logger.addAppender(appender);
+        logger.setAdditive(false);
+        logger.setLevel(Level.INFO);
+        backend = new Log4j2LoggerBackend(logger);
+        batchLogger = Log4j2BatchLogger.forLogger(logger);
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(FakeLogData.withPrintfStyle("record %d imported in %d ms", i, 42));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        logger.removeAppender(appender);
+        appender.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void logEach() {
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = installScope()) {
+            for (LogData logData : batch) {
+                backend.log(logData);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void logBatch() {
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = installScope()) {
+            batchLogger.log(batch);
+        }
+    }
+
+    // Installed per invocation, since the scope is bound to the benchmark thread.
+    private static ScopedLoggingContext.LoggingContextCloseable installScope() {
+        return GrpcContextDataProvider.getInstance()
+                .getContextApiSingleton()
+                .newContext()
+                .withMetadata(JOB_KEY, "nightly-import")
+                .withTags(Tags.of("tenant", "acme"))
+                .install();
+    }
+}
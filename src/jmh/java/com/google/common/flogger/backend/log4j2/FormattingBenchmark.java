@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.MetadataKey;
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.testing.FakeLogData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the core formatting path, from {@link LogData} to a log4j2 event, without appenders.
+ *
+ * <p>To check that the core path inlines, run with {@code ./gradlew jmh -PprintInlining} and look
+ * for {@code Log4j2MessageFormatter::formatDefault} and its callees in the output: none of them
+ * should be reported as "too big". The only virtual call left on the core path is {@code
+ * Parameter.accept()} inside Flogger. With printf templates it sees at most two receiver types
+ * ({@code SimpleParameter} and {@code DateTimeParameter}), which C2 inlines behind a type check, as
+ * {@link #formatMixedTemplates()} shows. Metadata handlers are not called on the core path at all, the
+ * default option never renders metadata into the message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormattingBenchmark {
+    private static final MetadataKey<String> ID_KEY = MetadataKey.single("id", String.class);
+
+    private Logger logger;
+    private LogData literal;
+    private LogData template;
+    private LogData templateWithMetadata;
+    private LogData[] mixedTemplates;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        logger = (Logger) LogManager.getLogger(FormattingBenchmark.class.getName());
+        literal = FakeLogData.of("request handled");
+        template = FakeLogData.withPrintfStyle("request %s handled in %d ms", "abc-123", 42);
+        templateWithMetadata = FakeLogData.withPrintfStyle("request %s handled in %d ms", "abc-123", 42)
+                .addMetadata(ID_KEY, "user-7");
+        mixedTemplates = new LogData[] {
+                template, FakeLogData.withPrintfStyle("request %s handled at %tT", "abc-123", 1_600_000_000_000L)
+        };
+    }
+
+    @Benchmark
+    public String formatLiteral() {
+        return Log4j2MessageFormatter.formatDefault(literal, Log4j2FormatLimits.UNLIMITED);
+    }
+
+    @Benchmark
+    public String formatTemplate() {
+        return Log4j2MessageFormatter.formatDefault(template, Log4j2FormatLimits.UNLIMITED);
+    }
+
+    // Alternates parameter types, so that the profile of Parameter.accept() is bimorphic as in real traffic.
+    @Benchmark
+    public String formatMixedTemplates() {
+        LogData logData = mixedTemplates[next++ & 1];
+        return Log4j2MessageFormatter.formatDefault(logData, Log4j2FormatLimits.UNLIMITED);
+    }
+
+    @Benchmark
+    public LogEvent createEvent() {
+        return Log4j2SimpleLogEvent.create(logger, template, Log4j2FormatLimits.UNLIMITED).asLoggingEvent();
+    }
+
+    @Benchmark
+    public LogEvent createEventWithMetadata() {
+        return Log4j2SimpleLogEvent.create(logger, templateWithMetadata, Log4j2FormatLimits.UNLIMITED)
+                .asLoggingEvent();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.MetadataKey;
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.backend.LoggerBackend;
+import com.google.common.flogger.context.ScopedLoggingContext;
+import com.google.common.flogger.context.Tags;
+import com.google.common.flogger.grpc.GrpcContextDataProvider;
+import com.google.common.flogger.testing.FakeLogData;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Standalone end-to-end load generator for backends created by {@link Log4j2BackendFactory}.
+ *
+ * <p>For every combination of appender and thread count the generator logs from all threads for a
+ * fixed duration (after a warmup period) and reports throughput, per call latency percentiles and
+ * the garbage collections which happened during the measurement. Run it with {@code
+ * ./gradlew loadGenerator --args='...'}, supported arguments are:
+ *
+ * <ul>
+ *   <li>{@code --threads 1,2,4,8} thread counts to run (default: powers of two up to the number of
+ *       available processors).
+ *   <li>{@code --appenders null,raf,rolling,async} appenders to log to (see {@code
+ *       log4j2-loadgen.xml}).
+ *   <li>{@code --context none|thread|scoped} additionally pushes to the log4j2 thread context stack
+ *       or installs a Flogger scoped logging context in every thread (default: none).
+ *   <li>{@code --warmup 5} and {@code --duration 10} in seconds.
+ * </ul>
+ */
+public final class Log4j2LoadGenerator {
+    private static final MetadataKey<Integer> COUNT_KEY = MetadataKey.single("count", Integer.class);
+    private static final MetadataKey<String> ID_KEY = MetadataKey.single("id", String.class);
+    // Statements are built before the measurement and logged round robin, a power of two.
+    private static final int STATEMENTS = 1024;
+    // How much longer than the expected run time to wait for the other threads before giving up.
+    private static final long BARRIER_GRACE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final String appender;
+    private final int threads;
+    private final String context;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    private Log4j2LoadGenerator(
+            String appender, int threads, String context, long warmupNanos, long durationNanos) {
+        this.appender = appender;
+        this.threads = threads;
+        this.context = context;
+        this.warmupNanos = warmupNanos;
+        this.durationNanos = durationNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("log4j.configurationFile") == null) {
+            System.setProperty("log4j.configurationFile", "log4j2-loadgen.xml");
+        }
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int n = 1; n <= Runtime.getRuntime().availableProcessors(); n *= 2) {
+            threadCounts.add(n);
+        }
+        List<String> appenders = Arrays.asList("null", "raf", "rolling", "async");
+        String context = "none";
+        long warmupSeconds = 5;
+        long durationSeconds = 10;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--threads":
+                    threadCounts.clear();
+                    for (String count : value.split(",")) {
+                        threadCounts.add(Integer.parseInt(count.trim()));
+                    }
+                    break;
+                case "--appenders":
+                    appenders = Arrays.asList(value.split(","));
+                    break;
+                case "--context":
+                    context = value;
+                    break;
+                case "--warmup":
+                    warmupSeconds = Long.parseLong(value);
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument: " + args[i]);
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "%-8s %7s %8s %14s %10s %10s %10s %10s %6s %8s%n",
+                "appender", "threads", "context", "ops/s", "p50(us)", "p99(us)", "p99.9(us)", "max(us)",
+                "gcs", "gc(ms)");
+        for (String appender : appenders) {
+            for (int threads : threadCounts) {
+                new Log4j2LoadGenerator(
+                        appender.trim(),
+                        threads,
+                        context,
+                        TimeUnit.SECONDS.toNanos(warmupSeconds),
+                        TimeUnit.SECONDS.toNanos(durationSeconds))
+                        .run();
+            }
+        }
+        LogManager.shutdown();
+    }
+
+    private void run() throws Exception {
+        LoggerBackend backend = Log4j2BackendFactory.getInstance().create("loadgen." + appender);
+        // All threads start warming up together and then wait for each other again, so that GC
+        // statistics are sampled exactly around the measured period. A failing worker breaks the
+        // barriers (and so does a timeout), so that nobody waits forever.
+        long timeoutNanos = warmupNanos + durationNanos + BARRIER_GRACE_NANOS;
+        CyclicBarrier start = new CyclicBarrier(threads);
+        CyclicBarrier measure = new CyclicBarrier(threads + 1);
+        CyclicBarrier done = new CyclicBarrier(threads + 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Histogram[] histograms = new Histogram[threads];
+        long[] counts = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            histograms[t] = new Histogram(3);
+            LogData[] statements = createStatements(index);
+            Thread worker = new Thread(() -> {
+                try {
+                    await(start, timeoutNanos);
+                    runWithContext(index, () -> {
+                        generate(backend, statements, warmupNanos, null);
+                        await(measure, timeoutNanos);
+                        counts[index] = generate(backend, statements, durationNanos, histograms[index]);
+                    });
+                    await(done, timeoutNanos);
+                } catch (Throwable e) {
+                    if (failure.compareAndSet(null, e)) {
+                        start.reset();
+                        measure.reset();
+                        done.reset();
+                    }
+                }
+            }, "loadgen-" + appender + "-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long gcCount;
+        long gcMillis;
+        long elapsedNanos;
+        try {
+            await(measure, timeoutNanos);
+            gcCount = gcCount();
+            gcMillis = gcMillis();
+            long startNanos = System.nanoTime();
+            await(done, timeoutNanos);
+            elapsedNanos = System.nanoTime() - startNanos;
+            gcCount = gcCount() - gcCount;
+            gcMillis = gcMillis() - gcMillis;
+        } catch (IllegalStateException e) {
+            // Workers still logging run into the broken barriers once their period ends.
+            for (Thread worker : workers) {
+                worker.join(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            }
+            Throwable cause = failure.get();
+            throw cause != null ? new IllegalStateException("worker failed", cause) : e;
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Histogram latencies = new Histogram(3);
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            latencies.add(histograms[t]);
+            total += counts[t];
+        }
+        System.out.printf(Locale.ROOT, "%-8s %7d %8s %14.0f %10.2f %10.2f %10.2f %10.2f %6d %8d%n",
+                appender,
+                threads,
+                context,
+                total * 1e9 / elapsedNanos,
+                latencies.getValueAtPercentile(50) / 1e3,
+                latencies.getValueAtPercentile(99) / 1e3,
+                latencies.getValueAtPercentile(99.9) / 1e3,
+                latencies.getMaxValue() / 1e3,
+                gcCount,
+                gcMillis);
+    }
+
+    private void runWithContext(int index, Runnable task) {
+        switch (context) {
+            case "thread":
+                ThreadContext.push("worker-" + index);
+                try {
+                    task.run();
+                } finally {
+                    ThreadContext.pop();
+                }
+                break;
+            case "scoped":
+                try (ScopedLoggingContext.LoggingContextCloseable ctx = GrpcContextDataProvider.getInstance()
+                        .getContextApiSingleton()
+                        .newContext()
+                        .withMetadata(ID_KEY, "worker-" + index)
+                        .withTags(Tags.of("worker", index))
+                        .install()) {
+                    task.run();
+                }
+                break;
+            case "none":
+                task.run();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown context: " + context);
+        }
+    }
+
+    // Built outside of the measured loop, so that only the backend is measured.
+    private static LogData[] createStatements(int index) {
+        LogData[] statements = new LogData[STATEMENTS];
+        for (int i = 0; i < STATEMENTS; i++) {
+            statements[i] = FakeLogData.withPrintfStyle("processed %d items in %s", i, "worker-" + index)
+                    .addMetadata(COUNT_KEY, i);
+        }
+        return statements;
+    }
+
+    /**
+     * Logs the given statements round robin for the given duration and returns the number of log
+     * calls, recording the latency of each call if a histogram is given.
+     */
+    private static long generate(LoggerBackend backend, LogData[] statements, long durationNanos, Histogram histogram) {
+        long end = System.nanoTime() + durationNanos;
+        long count = 0;
+        long now;
+        do {
+            long before = System.nanoTime();
+            backend.log(statements[(int) count & (STATEMENTS - 1)]);
+            now = System.nanoTime();
+            if (histogram != null) {
+                histogram.recordValue(now - before);
+            }
+            count++;
+        } while (now < end);
+        return count;
+    }
+
+    private static void await(CyclicBarrier barrier, long timeoutNanos) {
+        try {
+            barrier.await(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
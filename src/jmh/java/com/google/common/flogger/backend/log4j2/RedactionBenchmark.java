@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.testing.FakeLogData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares redaction during formatting ({@link Log4j2Redactor}) with the usual alternative, a regex
+ * rewrite of the fully formatted message (as done by a rewrite policy or a replace in the layout).
+ * Both apply the same rules: three prefixes and Luhn checked card numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RedactionBenchmark {
+    private static final Pattern PREFIXES =
+            Pattern.compile("(password=|token=|ghp_)[^\\s,;&'\"()\\[\\]{}<>]+");
+    private static final Pattern CARD_NUMBERS = Pattern.compile("\\b\\d(?:[ -]?\\d){12,18}\\b");
+
+    // "none" formats without redaction, "automaton" redacts during formatting and "regex" rewrites the
+    // formatted message.
+    @Param({"none", "automaton", "regex"})
+    public String mode;
+
+    private LogData clean;
+    private LogData sensitive;
+
+    @Setup
+    public void setUp() {
+        Log4j2Redactor.setDefault(mode.equals("automaton")
+                ? Log4j2Redactor.builder()
+                        .redactAfter("password=")
+                        .redactAfter("token=")
+                        .redactAfter("ghp_")
+                        .redactCardNumbers()
+                        .build()
+                : null);
+        clean = FakeLogData.withPrintfStyle(
+                "request %s from user %s handled in %d ms with status %s",
+                "GET /api/v1/orders?page=2&size=50", "alice@example.com", 42, "OK");
+        sensitive = FakeLogData.withPrintfStyle(
+                "request %s from user %s paid with %s, status %s",
+                "POST /login?token=abc123def456", "alice@example.com", "4111 1111 1111 1111", "OK");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Log4j2Redactor.setDefault(null);
+    }
+
+    @Benchmark
+    public String formatClean() {
+        return format(clean);
+    }
+
+    @Benchmark
+    public String formatSensitive() {
+        return format(sensitive);
+    }
+
+    private String format(LogData logData) {
+        String message = Log4j2MessageFormatter.formatDefault(logData, Log4j2FormatLimits.UNLIMITED);
+        return mode.equals("regex") ? rewrite(message) : message;
+    }
+
+    private static String rewrite(String message) {
+        String rewritten = PREFIXES.matcher(message).replaceAll("$1****");
+        Matcher matcher = CARD_NUMBERS.matcher(rewritten);
+        if (!matcher.find()) {
+            return rewritten;
+        }
+        StringBuffer out = new StringBuffer();
+        do {
+            String digits = matcher.group().replaceAll("[ -]", "");
+            String replacement = matcher.group();
+            if (passesLuhnCheck(digits)) {
+                replacement = replacement.substring(0, replacement.length() - 4).replaceAll("\\d", "*")
+                        + replacement.substring(replacement.length() - 4);
+            }
+            matcher.appendReplacement(out, Matcher.quoteReplacement(replacement));
+        } while (matcher.find());
+        matcher.appendTail(out);
+        return out.toString();
+    }
+
+    private static boolean passesLuhnCheck(String digits) {
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = digits.charAt(digits.length() - 1 - i) - '0';
+            if (i % 2 == 1) {
+                digit = digit * 2 > 9 ? digit * 2 - 9 : digit * 2;
+            }
+            sum += digit;
+        }
+        return sum % 10 == 0;
+    }
+}
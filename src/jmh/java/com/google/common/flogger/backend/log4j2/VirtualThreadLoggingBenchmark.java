@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.testing.FakeLogData;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.appender.NullAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs one statement from each of 100k concurrently started threads through {@link
+ * Log4j2LoggerBackend}.
+ *
+ * <p>The "virtual" variant needs a Java 21 runtime (virtual threads are looked up reflectively so
+ * the benchmark still compiles for Java 8) and fails its setup on older runtimes. The "platform"
+ * variant runs the same tasks on a fixed pool of platform threads for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VirtualThreadLoggingBenchmark {
+    private static final int TASKS = 100_000;
+
+    @Param({"virtual", "platform"})
+    public String threads;
+
+    private Logger logger;
+    private NullAppender appender;
+    private Log4j2LoggerBackend backend;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        logger = (Logger) LogManager.getLogger(VirtualThreadLoggingBenchmark.class.getName());
+        appender = NullAppender.createAppender("Null");
+        appender.start();
+        logger.addAppender(appender);
+        logger.setAdditive(false);
+        logger.setLevel(Level.INFO);
+        backend = new Log4j2LoggerBackend(logger);
+
+        if (threads.equals("virtual")) {
+            executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } else {
+            executor = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        logger.removeAppender(appender);
+        appender.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void logFromManyThreads() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            int request = i;
+            executor.execute(() -> {
+                backend.log(FakeLogData.withPrintfStyle("request %d handled in %d ms", request, 42));
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.backend.LogData;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+import org.apache.logging.log4j.message.Message;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+/**
+ * Renders the raw arguments of a Flogger log statement as {@code [arg1, arg2, ...]}, or the literal
+ * argument for log statements without a template. Use {@code %fargs} in a pattern layout.
+ *
+ * <p>Events which are not {@link Log4j2LogEvent}s are rendered from the parameters of their message.
+ * The character budgets of the logger ({@link Log4j2FormatLimits}) apply to each argument and to the
+ * rendered arguments as a whole, as they do for the message.
+ */
+@Plugin(name = "FloggerArgumentsConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({"fargs"})
+public final class Log4j2ArgumentsConverter extends LogEventPatternConverter {
+    private static final Log4j2ArgumentsConverter INSTANCE = new Log4j2ArgumentsConverter();
+
+    private Log4j2ArgumentsConverter() {
+        super("FloggerArguments", "fargs");
+    }
+
+    /**
+     * Called via reflection by log4j2 when a pattern layout uses {@code %fargs}.
+     */
+    public static Log4j2ArgumentsConverter newInstance(String[] options) {
+        return INSTANCE;
+    }
+
+    @Override
+    public void format(LogEvent event, StringBuilder toAppendTo) {
+        Log4j2Redactor redactor = Log4j2Redactor.current();
+        if (event instanceof Log4j2LogEvent) {
+            Log4j2LogEvent nativeEvent = (Log4j2LogEvent) event;
+            LogData logData = nativeEvent.getLogData();
+            Log4j2FormatLimits limits = nativeEvent.getFormatLimits();
+            if (logData.getTemplateContext() == null) {
+                int end = Log4j2FormatLimits.end(toAppendTo.length(), limits.getMaxMessageLength());
+                Log4j2MessageFormatter.appendArgument(toAppendTo, logData.getLiteralArgument(), end, redactor);
+            } else {
+                String template = logData.getTemplateContext().getMessage();
+                appendArguments(redactor, limits, template, logData.getArguments(), toAppendTo);
+            }
+            return;
+        }
+        Message message = event.getMessage();
+        Object[] parameters = message != null ? message.getParameters() : null;
+        if (parameters != null) {
+            Log4j2FormatLimits limits = Log4j2FormatLimits.resolve(event.getLoggerName());
+            appendArguments(redactor, limits, message.getFormat(), parameters, toAppendTo);
+        }
+    }
+
+    private static void appendArguments(
+            @NullableDecl Log4j2Redactor redactor,
+            Log4j2FormatLimits limits,
+            @NullableDecl String template,
+            Object[] arguments,
+            StringBuilder toAppendTo) {
+        // The arguments are rendered without their template, so a rule triggered by the template text
+        // (e.g. "password=%s") could not see its prefix; mask all arguments then, as for errors.
+        boolean maskAll = redactor != null && template != null && redactor.containsPrefix(template);
+        toAppendTo.append('[');
+        int messageEnd = Log4j2FormatLimits.end(toAppendTo.length(), limits.getMaxMessageLength());
+        for (int i = 0; i < arguments.length; i++) {
+            if (i > 0) {
+                toAppendTo.append(", ");
+            }
+            if (toAppendTo.length() >= messageEnd) {
+                // The budget is used up, the remaining arguments are elided as a whole.
+                toAppendTo.append("...");
+                break;
+            }
+            if (maskAll) {
+                toAppendTo.append(Log4j2Redactor.MASK);
+                continue;
+            }
+            int end = Math.min(Log4j2FormatLimits.end(toAppendTo.length(), limits.getMaxArgumentLength()), messageEnd);
+            Log4j2MessageFormatter.appendArgument(toAppendTo, arguments[i], end, redactor);
+        }
+        toAppendTo.append(']');
+    }
+}
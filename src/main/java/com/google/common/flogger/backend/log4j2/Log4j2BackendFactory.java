@@ -20,6 +20,7 @@ import com.google.common.flogger.backend.LoggerBackend;
 import com.google.common.flogger.backend.system.BackendFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
 
 /**
  * BackendFactory for log4j2.
@@ -31,11 +32,27 @@ import org.apache.logging.log4j.core.Logger;
  *   <li>{@code flogger.backend_factory=
  *       com.google.common.flogger.backend.log4j2.Log4j2BackendFactory#getInstance}
  * </ul>
+ *
+ * <p>Log levels can be overridden at runtime, per log site or per logger name prefix, via the {@link
+ * Log4j2LevelOverridesMBean} registered as {@code
+ * com.google.common.flogger.backend.log4j2:type=LevelOverrides} (set {@code
+ * flogger.log4j2.disable.jmx=true} to prevent the registration).
+ *
+ * <p>On Java 11 and later the backend emits JDK Flight Recorder events ({@code
+ * com.google.common.flogger.FloggerLog} per log statement, disabled by default, and periodic {@code
+ * com.google.common.flogger.FloggerCounters}).
  */
 public final class Log4j2BackendFactory extends BackendFactory {
     private static final Log4j2BackendFactory INSTANCE = new Log4j2BackendFactory();
 
     private Log4j2BackendFactory() {
+        Log4j2LevelOverrides.registerMBean();
+        try {
+            Log4j2FlightRecorder.register();
+        } catch (LinkageError | RuntimeException e) {
+            // E.g. a runtime image without the jdk.jfr module, the backend then works without events.
+            StatusLogger.getLogger().warn("Unable to register Flight Recorder events", e);
+        }
     }
 
     /**
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.backend.LogData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Logger;
+
+import java.util.List;
+
+/**
+ * Logs batches of log statements for bulk producers, which emit many statements in a tight loop on
+ * one thread.
+ *
+ * <p>Compared to logging each statement on its own, a batch looks up the current scope once and
+ * shares its context (metadata, tags, thread context stack and thread name) between all events,
+ * checks the level of each statement before formatting it, and hands all events to the logger
+ * configuration in one dispatch (resolving the configuration, and taking the lock of the {@code
+ * nonblocking} dispatcher, once per batch). The appenders themselves are still called, and take
+ * their locks, once per event, as log4j2 appends one event at a time; the last event of a batch is
+ * marked as end of batch though, so appenders which buffer their output flush once per batch.
+ * Statements of a scope with a tail buffer or a budget are still logged one by one.
+ *
+ * <pre>{@code
+ * Log4j2BatchLogger batchLogger = Log4j2BatchLogger.forClass(Importer.class);
+ * batchLogger.log(statements);
+ * }</pre>
+ */
+public final class Log4j2BatchLogger {
+    private final Log4j2LoggerBackend backend;
+
+    private Log4j2BatchLogger(Log4j2LoggerBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Returns a batch logger for the logger of the given class, named as by {@link
+     * Log4j2BackendFactory}.
+     */
+    public static Log4j2BatchLogger forClass(Class<?> loggingClass) {
+        return forName(loggingClass.getName().replace('$', '.'));
+    }
+
+    /**
+     * Returns a batch logger for the log4j2 logger of the given name.
+     */
+    public static Log4j2BatchLogger forName(String loggerName) {
+        return new Log4j2BatchLogger(new Log4j2LoggerBackend((Logger) LogManager.getLogger(loggerName)));
+    }
+
+    // VisibleForTesting
+    static Log4j2BatchLogger forLogger(Logger logger) {
+        return new Log4j2BatchLogger(new Log4j2LoggerBackend(logger));
+    }
+
+    /**
+     * Logs the given statements in order. Errors while formatting a statement are reported in place
+     * of that statement, as for single statements.
+     */
+    public void log(List<? extends LogData> batch) {
+        backend.logBatch(batch);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.backend.Metadata;
+import com.google.common.flogger.backend.MetadataHandler;
+import com.google.common.flogger.backend.MetadataProcessor;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.util.StringMap;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Controls how much context is captured into the log4j2 events of a level, configurable per logger
+ * name prefix.
+ *
+ * <ul>
+ *   <li>{@link #FULL} (the default): the metadata of the scope and the log statement, the tags and the
+ *       log4j2 thread context stack, and the thread name.
+ *   <li>{@link #METADATA}: the metadata only.
+ *   <li>{@link #keys(String...)}: only the metadata keys with the given labels.
+ *   <li>{@link #NONE}: no context data, no context stack and no thread name.
+ * </ul>
+ *
+ * <p>Skipping the context of high volume levels keeps DEBUG and TRACE statements cheap, e.g. in hot
+ * loops, while WARN and ERROR keep their full context. Events without a thread name render it as
+ * empty. The capture of the root prefix can be set via {@code flogger.log4j2.capture.<level>} (e.g.
+ * {@code flogger.log4j2.capture.debug=none}) with the values {@code full}, {@code metadata}, {@code
+ * none} or a comma separated list of keys, and for individual loggers via {@link #setCapture(String,
+ * Level, Log4j2ContextCapture)}. Native events (see {@code flogger.log4j2.native_events}) apply the
+ * capture too: they neither keep the skipped context nor build it on demand.
+ */
+public final class Log4j2ContextCapture {
+    /**
+     * Captures all context.
+     */
+    public static final Log4j2ContextCapture FULL = new Log4j2ContextCapture(true, true, null);
+    /**
+     * Captures the metadata of the scope and the log statement.
+     */
+    public static final Log4j2ContextCapture METADATA = new Log4j2ContextCapture(true, false, null);
+    /**
+     * Captures no context at all.
+     */
+    public static final Log4j2ContextCapture NONE = new Log4j2ContextCapture(false, false, null);
+
+    // The levels with a capture of their own, from most to least severe (FATAL is handled as ERROR).
+    private static final Level[] LEVELS = {Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE};
+    private static final StringMap EMPTY_CONTEXT_DATA = ContextDataFactory.emptyFrozenContextData();
+
+    private static volatile Map<String, Log4j2ContextCapture[]> capturesByPrefix = defaultCaptures();
+
+    private final boolean capturesMetadata;
+    private final boolean capturesThread;
+    // The labels of the captured keys, or null for all keys.
+    @NullableDecl
+    private final Set<String> keys;
+    // The handler which emits the selected keys, built from the default handler it was created with.
+    @NullableDecl
+    private volatile SelectingHandler selectingHandler = null;
+
+    private Log4j2ContextCapture(boolean capturesMetadata, boolean capturesThread, @NullableDecl Set<String> keys) {
+        this.capturesMetadata = capturesMetadata;
+        this.capturesThread = capturesThread;
+        this.keys = keys;
+    }
+
+    /**
+     * Captures only the metadata keys with the given labels.
+     */
+    public static Log4j2ContextCapture keys(String... labels) {
+        return new Log4j2ContextCapture(true, false, ImmutableSet.copyOf(labels));
+    }
+
+    private static Map<String, Log4j2ContextCapture[]> defaultCaptures() {
+        Log4j2ContextCapture[] captures = null;
+        for (int i = 0; i < LEVELS.length; i++) {
+            String property = System.getProperty(
+                    "flogger.log4j2.capture." + LEVELS[i].name().toLowerCase(Locale.ROOT));
+            if (property != null) {
+                if (captures == null) {
+                    captures = allFull();
+                }
+                captures[i] = parse(property);
+            }
+        }
+        return captures != null ? Collections.singletonMap("", captures) : Collections.emptyMap();
+    }
+
+    private static Log4j2ContextCapture parse(String property) {
+        switch (property.trim().toLowerCase(Locale.ROOT)) {
+            case "full":
+                return FULL;
+            case "metadata":
+                return METADATA;
+            case "none":
+                return NONE;
+            default:
+                return keys(Arrays.stream(property.split(","))
+                        .map(String::trim)
+                        .filter(key -> !key.isEmpty())
+                        .toArray(String[]::new));
+        }
+    }
+
+    private static Log4j2ContextCapture[] allFull() {
+        Log4j2ContextCapture[] captures = new Log4j2ContextCapture[LEVELS.length];
+        Arrays.fill(captures, FULL);
+        return captures;
+    }
+
+    private static int indexOf(Level level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (level.isMoreSpecificThan(LEVELS[i])) {
+                return i;
+            }
+        }
+        return LEVELS.length - 1;
+    }
+
+    /**
+     * Sets the capture for events of the given level and all less severe levels, for all loggers whose
+     * name is equal to, or starts with, the given prefix followed by a dot. The empty prefix applies to
+     * all loggers. If several prefixes match a logger the longest one wins.
+     */
+    public static synchronized void setCapture(String loggerNamePrefix, Level level, Log4j2ContextCapture capture) {
+        Map<String, Log4j2ContextCapture[]> captures = new HashMap<>(capturesByPrefix);
+        Log4j2ContextCapture[] byLevel = captures.containsKey(loggerNamePrefix)
+                ? captures.get(loggerNamePrefix).clone()
+                : allFull();
+        Arrays.fill(byLevel, indexOf(level), LEVELS.length, capture);
+        captures.put(loggerNamePrefix, byLevel);
+        capturesByPrefix = Collections.unmodifiableMap(captures);
+    }
+
+    /**
+     * Removes the captures of the given logger name prefix.
+     */
+    public static synchronized void removeCaptures(String loggerNamePrefix) {
+        Map<String, Log4j2ContextCapture[]> captures = new HashMap<>(capturesByPrefix);
+        captures.remove(loggerNamePrefix);
+        capturesByPrefix = Collections.unmodifiableMap(captures);
+    }
+
+    /**
+     * Returns the captures which apply to the logger of the given name.
+     */
+    static Resolved resolve(String loggerName) {
+        Map<String, Log4j2ContextCapture[]> current = capturesByPrefix;
+        Log4j2ContextCapture[] captures = Resolved.DEFAULT.byLevel;
+        int longestPrefix = -1;
+        for (Map.Entry<String, Log4j2ContextCapture[]> entry : current.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > longestPrefix && Log4j2LevelOverrides.matchesPrefix(loggerName, prefix)) {
+                captures = entry.getValue();
+                longestPrefix = prefix.length();
+            }
+        }
+        return new Resolved(captures, current);
+    }
+
+    boolean capturesThread() {
+        return capturesThread;
+    }
+
+    /**
+     * Returns the context data for the given scope and log site metadata.
+     */
+    StringMap createContextMap(Metadata scope, Metadata logSiteMetadata) {
+        if (!capturesMetadata) {
+            return EMPTY_CONTEXT_DATA;
+        }
+        if (keys == null) {
+            return Log4j2SimpleLogEvent.createContextMap(scope, logSiteMetadata);
+        }
+        StringMap contextData = ContextDataFactory.createContextData(keys.size());
+        MetadataProcessor
+                .forScopeAndLogSite(scope, logSiteMetadata)
+                .process(getSelectingHandler(), new Log4j2KeyValueHandler(contextData));
+        contextData.freeze();
+        return contextData;
+    }
+
+    private MetadataHandler<Log4j2KeyValueHandler> getSelectingHandler() {
+        MetadataHandler<Log4j2KeyValueHandler> defaultHandler = Log4j2MetadataHandler.getDefaultHandler();
+        SelectingHandler handler = selectingHandler;
+        if (handler == null || handler.defaultHandler != defaultHandler) {
+            // Racy rebuilds are harmless, the handlers are immutable.
+            handler = new SelectingHandler(defaultHandler, Log4j2MetadataHandler.buildSelectingHandler(keys));
+            selectingHandler = handler;
+        }
+        return handler.handler;
+    }
+
+    private static final class SelectingHandler {
+        // The default handler when this handler was built, which must be rebuilt if it changes.
+        final MetadataHandler<Log4j2KeyValueHandler> defaultHandler;
+        final MetadataHandler<Log4j2KeyValueHandler> handler;
+
+        SelectingHandler(
+                MetadataHandler<Log4j2KeyValueHandler> defaultHandler,
+                MetadataHandler<Log4j2KeyValueHandler> handler) {
+            this.defaultHandler = defaultHandler;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * The captures of a logger, per level.
+     */
+    static final class Resolved {
+        static final Resolved DEFAULT = new Resolved(allFull(), null);
+
+        private final Log4j2ContextCapture[] byLevel;
+        // The configuration these captures were resolved from (null for the default).
+        @NullableDecl
+        private final Map<String, Log4j2ContextCapture[]> source;
+
+        private Resolved(Log4j2ContextCapture[] byLevel, @NullableDecl Map<String, Log4j2ContextCapture[]> source) {
+            this.byLevel = byLevel;
+            this.source = source;
+        }
+
+        /**
+         * Returns whether these captures were resolved from the current configuration.
+         */
+        boolean isCurrent() {
+            return source == capturesByPrefix;
+        }
+
+        Log4j2ContextCapture forLevel(Level level) {
+            return byLevel[indexOf(level)];
+        }
+    }
+}
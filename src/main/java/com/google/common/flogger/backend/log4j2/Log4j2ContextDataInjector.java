@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.flogger.backend.Metadata;
+import com.google.common.flogger.backend.MetadataHandler;
+import com.google.common.flogger.backend.MetadataProcessor;
+import com.google.common.flogger.context.ContextDataProvider;
+import com.google.common.flogger.grpc.GrpcContextDataProvider;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.ContextDataInjector;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.ThreadContextDataInjector;
+import org.apache.logging.log4j.spi.CopyOnWrite;
+import org.apache.logging.log4j.spi.DefaultThreadContextMap;
+import org.apache.logging.log4j.spi.ReadOnlyThreadContextMap;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringMap;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.List;
+
+/**
+ * A log4j2 {@link ContextDataInjector} which adds the metadata of the current Flogger logging scope
+ * to the context data of every log4j2 event, including events logged through the log4j2 API
+ * directly (e.g. by third-party libraries).
+ *
+ * <p>To use it, set the following system property:
+ *
+ * <ul>
+ *   <li>{@code log4j2.contextDataInjector=
+ *       com.google.common.flogger.backend.log4j2.Log4j2ContextDataInjector}
+ * </ul>
+ *
+ * <p>The log4j2 thread context is handled exactly as by the default injector. The scope metadata is
+ * converted into a frozen map once per scope (see {@link #getScopeContextData}) and shared by all
+ * events logged within that scope, both by this injector and by the Flogger backend.
+ */
+public final class Log4j2ContextDataInjector implements ContextDataInjector {
+    // Keys are compared by identity, which is what we want for the (immutable) scope metadata.
+    private static final Cache<Metadata, ScopeContextData> SCOPE_CONTEXT_DATA =
+            CacheBuilder.newBuilder().weakKeys().maximumSize(1024).build();
+    private static final StringMap EMPTY_CONTEXT_DATA = ContextDataFactory.emptyFrozenContextData();
+
+    private final ContextDataInjector threadContextInjector = createThreadContextInjector();
+
+    /**
+     * This constructor is expected to be called via reflection by log4j2.
+     */
+    public Log4j2ContextDataInjector() {
+    }
+
+    // Mirrors how log4j2 picks its default injector for the active thread context map.
+    private static ContextDataInjector createThreadContextInjector() {
+        ReadOnlyThreadContextMap threadContextMap = ThreadContext.getThreadContextMap();
+        if (threadContextMap == null || threadContextMap instanceof DefaultThreadContextMap) {
+            return new ThreadContextDataInjector.ForDefaultThreadContextMap();
+        }
+        if (threadContextMap instanceof CopyOnWrite) {
+            return new ThreadContextDataInjector.ForCopyOnWriteThreadContextMap();
+        }
+        return new ThreadContextDataInjector.ForGarbageFreeThreadContextMap();
+    }
+
+    @Override
+    public StringMap injectContextData(List<Property> properties, StringMap reusable) {
+        StringMap contextData = threadContextInjector.injectContextData(properties, reusable);
+        StringMap scopeContextData = getScopeContextData(GrpcContextDataProvider.getInstance());
+        if (scopeContextData.isEmpty()) {
+            return contextData;
+        }
+        if (contextData != reusable) {
+            // The thread context injector may return a shared frozen map.
+            reusable.putAll(contextData);
+        }
+        reusable.putAll(scopeContextData);
+        return reusable;
+    }
+
+    @Override
+    public ReadOnlyStringMap rawContextData() {
+        ReadOnlyStringMap threadContextData = threadContextInjector.rawContextData();
+        StringMap scopeContextData = getScopeContextData(GrpcContextDataProvider.getInstance());
+        if (scopeContextData.isEmpty()) {
+            return threadContextData;
+        }
+        if (threadContextData.isEmpty()) {
+            return scopeContextData;
+        }
+        StringMap merged = ContextDataFactory.createContextData(threadContextData.size() + scopeContextData.size());
+        merged.putAll(threadContextData);
+        merged.putAll(scopeContextData);
+        merged.freeze();
+        return merged;
+    }
+
+    /**
+     * Returns the metadata of the current logging scope as a frozen map. The map is built once per
+     * scope (and metadata handler) and then shared, so this does not allocate for repeated calls.
+     */
+    static StringMap getScopeContextData(ContextDataProvider contextDataProvider) {
+        return getScopeContextData(contextDataProvider.getMetadata());
+    }
+
+    /**
+     * Returns the given scope metadata as a frozen map, see {@link
+     * #getScopeContextData(ContextDataProvider)}.
+     */
+    static StringMap getScopeContextData(Metadata scope) {
+        if (scope.size() == 0) {
+            return EMPTY_CONTEXT_DATA;
+        }
+        MetadataHandler<Log4j2KeyValueHandler> handler = Log4j2MetadataHandler.getDefaultHandler();
+        ScopeContextData cached = SCOPE_CONTEXT_DATA.getIfPresent(scope);
+        Log4j2Redactor redactor = Log4j2Redactor.current();
+        if (cached == null || cached.handler != handler || cached.redactor != redactor) {
+            StringMap contextData = ContextDataFactory.createContextData(scope.size());
+            MetadataProcessor
+                    .forScopeAndLogSite(scope, Metadata.empty())
+                    .process(handler, new Log4j2KeyValueHandler(contextData));
+            contextData.freeze();
+            cached = new ScopeContextData(handler, redactor, contextData);
+            SCOPE_CONTEXT_DATA.put(scope, cached);
+        }
+        return cached.contextData;
+    }
+
+    private static final class ScopeContextData {
+        // The handler used to build the map, which must be rebuilt if the handler changes.
+        final MetadataHandler<Log4j2KeyValueHandler> handler;
+        // The redactor which masked the values, the map must be rebuilt if it changes as well.
+        @NullableDecl
+        final Log4j2Redactor redactor;
+        final StringMap contextData;
+
+        ScopeContextData(
+                MetadataHandler<Log4j2KeyValueHandler> handler,
+                @NullableDecl Log4j2Redactor redactor,
+                StringMap contextData) {
+            this.handler = handler;
+            this.redactor = redactor;
+            this.contextData = contextData;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters of backend operations which did not result in a normal log event.
+ *
+ * <p>Counters only ever increase. They are reported periodically via JDK Flight Recorder (see {@link
+ * Log4j2FlightRecorder}).
+ */
+final class Log4j2Counters {
+    private static final LongAdder ERRORS = new LongAdder();
+    private static final LongAdder SUPPRESSED_ERRORS = new LongAdder();
+    private static final LongAdder DROPPED_EVENTS = new LongAdder();
+
+    private Log4j2Counters() {
+    }
+
+    /**
+     * Records an error during logging (rendered or not).
+     */
+    static void recordError() {
+        ERRORS.increment();
+    }
+
+    /**
+     * Records an error which was not rendered, because its log site failed too often.
+     */
+    static void recordSuppressedError() {
+        SUPPRESSED_ERRORS.increment();
+    }
+
+    /**
+     * Records a log event which was dropped instead of being dispatched to the appenders.
+     */
+    static void recordDroppedEvent() {
+        DROPPED_EVENTS.increment();
+    }
+
+    static long getErrors() {
+        return ERRORS.sum();
+    }
+
+    static long getSuppressedErrors() {
+        return SUPPRESSED_ERRORS.sum();
+    }
+
+    static long getDroppedEvents() {
+        return DROPPED_EVENTS.sum();
+    }
+}
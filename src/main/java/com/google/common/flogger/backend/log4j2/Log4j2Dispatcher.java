@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+
+import java.util.List;
+
+/**
+ * Hands finished log events to the log4j2 logger configuration (and thereby to the appenders).
+ *
+ * <p>The dispatcher is chosen once, via the {@code flogger.log4j2.dispatch} system property:
+ *
+ * <ul>
+ *   <li>{@code direct} (default) calls the logger configuration on the logging thread.
+ *   <li>{@code striped} queues events in per-core stripes which a single writer thread drains in
+ *       batches (see {@link Log4j2StripedDispatcher}).
+ *   <li>{@code nonblocking} calls the logger configuration on the logging thread if no other thread
+ *       is dispatching, and otherwise queues the event for that thread (see {@link
+ *       Log4j2NonBlockingDispatcher}).
+ * </ul>
+ */
+interface Log4j2Dispatcher {
+    /**
+     * Dispatches the given event, which must not be modified afterwards.
+     */
+    void dispatch(Logger logger, LogEvent event);
+
+    /**
+     * Dispatches the given events in order, none of which must be modified afterwards.
+     *
+     * <p>Dispatchers take their own locks once per call, but the appenders still handle (and lock)
+     * one event at a time, since log4j2 has no API to append several events at once.
+     */
+    default void dispatchAll(Logger logger, List<LogEvent> events) {
+        for (LogEvent event : events) {
+            dispatch(logger, event);
+        }
+    }
+
+    /**
+     * Returns the dispatcher configured via system properties.
+     */
+    static Log4j2Dispatcher fromSystemProperties() {
+        String mode = System.getProperty("flogger.log4j2.dispatch", "direct");
+        switch (mode) {
+            case "striped":
+                return Log4j2StripedDispatcher.fromSystemProperties();
+            case "nonblocking":
+                return Log4j2NonBlockingDispatcher.fromSystemProperties();
+            case "direct":
+            default:
+                return new Log4j2Dispatcher() {
+                    @Override
+                    public void dispatch(Logger logger, LogEvent event) {
+                        logger.get().log(event);
+                    }
+
+                    @Override
+                    public void dispatchAll(Logger logger, List<LogEvent> events) {
+                        // Resolve the logger configuration once for the whole batch.
+                        LoggerConfig loggerConfig = logger.get();
+                        for (LogEvent event : events) {
+                            loggerConfig.log(event);
+                        }
+                    }
+                };
+        }
+    }
+}
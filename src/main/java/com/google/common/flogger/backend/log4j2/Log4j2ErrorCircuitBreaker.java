@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.LogSite;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how often logging errors from a single log site are rendered.
+ *
+ * <p>Rendering a logging error is expensive (every argument and all metadata are formatted) and
+ * usually fails in the same way for every call of a broken log site. After {@code
+ * flogger.log4j2.error_threshold} errors (default 10) within {@code flogger.log4j2.error_window_millis}
+ * (default one minute) further errors from that log site are only counted, and the count is reported
+ * with the first error rendered in a later window. Counts which no later error reports are flushed
+ * once per window as a warning of their own, so that they also show up for log sites which stopped
+ * failing. Errors without a log site ({@link LogSite#INVALID}) are always rendered, as they cannot be
+ * told apart.
+ */
+final class Log4j2ErrorCircuitBreaker {
+    /**
+     * Returned by {@link #record(Log4j2LoggerBackend, LogSite, long)} if the error should not be
+     * rendered.
+     */
+    static final long SUPPRESS = -1;
+
+    // Returned by SiteErrors.record() once the flush task evicted the entry, the caller starts over.
+    private static final long EVICTED = -2;
+    // Bounds the memory used for tracking, errors from untracked log sites are always rendered. Sites
+    // are evicted once their window ended, so this only bounds the sites failing within one window.
+    private static final int MAX_TRACKED_SITES = 1000;
+    private static final Log4j2ErrorCircuitBreaker INSTANCE = new Log4j2ErrorCircuitBreaker(
+            Integer.getInteger("flogger.log4j2.error_threshold", 10),
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("flogger.log4j2.error_window_millis", 60_000L)));
+
+    private final int threshold;
+    private final long windowNanos;
+    private final ConcurrentMap<LogSite, SiteErrors> errorsBySite = new ConcurrentHashMap<>();
+    // Started with the first tracked log site.
+    private volatile ScheduledExecutorService scheduler = null;
+
+    private Log4j2ErrorCircuitBreaker(int threshold, long windowNanos) {
+        this.threshold = threshold;
+        this.windowNanos = windowNanos;
+    }
+
+    static Log4j2ErrorCircuitBreaker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records an error of the given backend at the given log site and returns either {@link
+     * #SUPPRESS}, or the number of errors suppressed since the last rendered error at this log site
+     * (usually zero).
+     */
+    long record(Log4j2LoggerBackend backend, LogSite logSite, long timestampNanos) {
+        if (logSite == LogSite.INVALID) {
+            return 0;
+        }
+        while (true) {
+            SiteErrors errors = errorsBySite.get(logSite);
+            if (errors == null) {
+                if (errorsBySite.size() >= MAX_TRACKED_SITES) {
+                    return 0;
+                }
+                SiteErrors newErrors = new SiteErrors(timestampNanos);
+                errors = errorsBySite.putIfAbsent(logSite, newErrors);
+                if (errors == null) {
+                    errors = newErrors;
+                    if (scheduler == null) {
+                        startFlushing();
+                    }
+                }
+            }
+            long suppressed = errors.record(backend, timestampNanos, threshold, windowNanos);
+            if (suppressed != EVICTED) {
+                return suppressed;
+            }
+        }
+    }
+
+    // VisibleForTesting
+    boolean isTracked(LogSite logSite) {
+        return errorsBySite.containsKey(logSite);
+    }
+
+    private synchronized void startFlushing() {
+        if (scheduler == null) {
+            ScheduledExecutorService newScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "flogger-log4j2-error-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            newScheduler.scheduleWithFixedDelay(
+                    () -> flush(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis())),
+                    windowNanos,
+                    windowNanos,
+                    TimeUnit.NANOSECONDS);
+            scheduler = newScheduler;
+        }
+    }
+
+    /**
+     * Reports the errors suppressed at every log site whose window ended before the given time, via
+     * the backend which suppressed the last of them, and stops tracking these log sites.
+     */
+    // VisibleForTesting
+    void flush(long nowNanos) {
+        for (Map.Entry<LogSite, SiteErrors> entry : errorsBySite.entrySet()) {
+            SiteErrors errors = entry.getValue();
+            Log4j2LoggerBackend backend;
+            long suppressed;
+            synchronized (errors) {
+                backend = errors.backend;
+                suppressed = errors.flush(nowNanos, windowNanos);
+                if (errors.evicted) {
+                    errorsBySite.remove(entry.getKey(), errors);
+                }
+            }
+            if (suppressed > 0 && backend != null) {
+                try {
+                    backend.logSuppressedErrors(entry.getKey(), suppressed);
+                } catch (RuntimeException e) {
+                    // Keep flushing the other log sites.
+                    Log4j2Counters.recordError();
+                }
+            }
+        }
+    }
+
+    private static final class SiteErrors {
+        private long windowStartNanos;
+        private int errors = 0;
+        private long suppressed = 0;
+        // The backend which suppressed the last error, used to report the count when flushing.
+        @NullableDecl
+        private Log4j2LoggerBackend backend = null;
+        // Set once the window ended without further errors, the entry is then removed from the map.
+        private boolean evicted = false;
+
+        SiteErrors(long windowStartNanos) {
+            this.windowStartNanos = windowStartNanos;
+        }
+
+        synchronized long record(
+                Log4j2LoggerBackend backend, long timestampNanos, int threshold, long windowNanos) {
+            if (evicted) {
+                return EVICTED;
+            }
+            if (timestampNanos - windowStartNanos > windowNanos) {
+                long suppressedInLastWindow = suppressed;
+                windowStartNanos = timestampNanos;
+                errors = 1;
+                suppressed = 0;
+                return suppressedInLastWindow;
+            }
+            if (++errors > threshold) {
+                suppressed++;
+                this.backend = backend;
+                return SUPPRESS;
+            }
+            return 0;
+        }
+
+        // Returns the errors suppressed in a window which ended before the given time and evicts the
+        // entry, any later error at this log site starts a new window anyway.
+        synchronized long flush(long nowNanos, long windowNanos) {
+            if (nowNanos - windowStartNanos <= windowNanos) {
+                return 0;
+            }
+            long suppressedInLastWindow = suppressed;
+            suppressed = 0;
+            evicted = true;
+            return suppressedInLastWindow;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.LogSite;
+import org.apache.logging.log4j.Level;
+
+/**
+ * Emits JDK Flight Recorder events for backend operations.
+ *
+ * <p>This is the Java 8 variant, which does nothing. On Java 11 and later the multi-release JAR
+ * provides a variant (in {@code src/main/java11}) which emits a {@code FloggerLog} event per log
+ * statement and periodic {@code FloggerCounters} events. Since {@link #isLogEventEnabled()} is a
+ * constant here, the measuring code in the backend is eliminated by the JIT.
+ */
+final class Log4j2FlightRecorder {
+    private Log4j2FlightRecorder() {
+    }
+
+    /**
+     * Registers the periodic events, called once by the backend factory.
+     */
+    static void register() {
+    }
+
+    /**
+     * Returns whether per log statement events are currently recorded.
+     */
+    static boolean isLogEventEnabled() {
+        return false;
+    }
+
+    /**
+     * Records a log statement. The formatted length is -1 if the message is formatted later.
+     */
+    static void commitLogEvent(
+            String loggerName,
+            Level level,
+            LogSite logSite,
+            int formattedLength,
+            long formatNanos,
+            long dispatchNanos) {
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Character budgets for formatted log messages, configurable per logger name prefix.
+ *
+ * <p>When a budget is exceeded the formatter stops rendering at the cap and appends an elision
+ * marker. Arrays, collections and maps are rendered element by element, so a huge argument never
+ * needs to be converted into an equally huge intermediate string. Budgets default to the system
+ * properties {@code flogger.log4j2.max_argument_length} and {@code flogger.log4j2.max_message_length}
+ * (unlimited if unset) and can be set for individual loggers via {@link #setLimits(String, int,
+ * int)}.
+ */
+public final class Log4j2FormatLimits {
+    static final int UNLIMITED_LENGTH = Integer.MAX_VALUE;
+    static final Log4j2FormatLimits UNLIMITED =
+            new Log4j2FormatLimits(UNLIMITED_LENGTH, UNLIMITED_LENGTH, null);
+
+    private static volatile Map<String, Log4j2FormatLimits> limitsByPrefix = defaultLimits();
+
+    private final int maxArgumentLength;
+    private final int maxMessageLength;
+    // The configuration these limits were resolved from (null for registered limits).
+    @NullableDecl
+    private final Map<String, Log4j2FormatLimits> source;
+
+    private Log4j2FormatLimits(
+            int maxArgumentLength, int maxMessageLength, @NullableDecl Map<String, Log4j2FormatLimits> source) {
+        this.maxArgumentLength = maxArgumentLength;
+        this.maxMessageLength = maxMessageLength;
+        this.source = source;
+    }
+
+    private static Map<String, Log4j2FormatLimits> defaultLimits() {
+        int maxArgumentLength = Integer.getInteger("flogger.log4j2.max_argument_length", UNLIMITED_LENGTH);
+        int maxMessageLength = Integer.getInteger("flogger.log4j2.max_message_length", UNLIMITED_LENGTH);
+        if (maxArgumentLength == UNLIMITED_LENGTH && maxMessageLength == UNLIMITED_LENGTH) {
+            return Collections.emptyMap();
+        }
+        return Collections.singletonMap("", of(maxArgumentLength, maxMessageLength));
+    }
+
+    private static Log4j2FormatLimits of(int maxArgumentLength, int maxMessageLength) {
+        if (maxArgumentLength <= 0 || maxMessageLength <= 0) {
+            throw new IllegalArgumentException(
+                    "limits must be positive: " + maxArgumentLength + ", " + maxMessageLength);
+        }
+        return new Log4j2FormatLimits(maxArgumentLength, maxMessageLength, null);
+    }
+
+    /**
+     * Sets the maximum number of characters per formatted argument and per message for all loggers
+     * whose name is equal to, or starts with, the given prefix followed by a dot. The empty prefix
+     * applies to all loggers. If several prefixes match a logger the longest one wins.
+     */
+    public static synchronized void setLimits(
+            String loggerNamePrefix, int maxArgumentLength, int maxMessageLength) {
+        Map<String, Log4j2FormatLimits> limits = new HashMap<>(limitsByPrefix);
+        limits.put(loggerNamePrefix, of(maxArgumentLength, maxMessageLength));
+        limitsByPrefix = Collections.unmodifiableMap(limits);
+    }
+
+    /**
+     * Removes the limits of the given logger name prefix.
+     */
+    public static synchronized void removeLimits(String loggerNamePrefix) {
+        Map<String, Log4j2FormatLimits> limits = new HashMap<>(limitsByPrefix);
+        limits.remove(loggerNamePrefix);
+        limitsByPrefix = Collections.unmodifiableMap(limits);
+    }
+
+    /**
+     * Returns the limits which apply to the logger of the given name.
+     */
+    static Log4j2FormatLimits resolve(String loggerName) {
+        Map<String, Log4j2FormatLimits> current = limitsByPrefix;
+        Log4j2FormatLimits limits = UNLIMITED;
+        int longestPrefix = -1;
+        for (Map.Entry<String, Log4j2FormatLimits> entry : current.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > longestPrefix && Log4j2LevelOverrides.matchesPrefix(loggerName, prefix)) {
+                limits = entry.getValue();
+                longestPrefix = prefix.length();
+            }
+        }
+        return new Log4j2FormatLimits(limits.maxArgumentLength, limits.maxMessageLength, current);
+    }
+
+    /**
+     * Returns whether these limits were resolved from the current configuration.
+     */
+    boolean isCurrent() {
+        return source == limitsByPrefix;
+    }
+
+    int getMaxArgumentLength() {
+        return maxArgumentLength;
+    }
+
+    int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    /**
+     * Returns the exclusive end index for appending at most {@code maxLength} characters at {@code
+     * start}, without overflowing.
+     */
+    static int end(int start, int maxLength) {
+        return maxLength >= UNLIMITED_LENGTH - start ? UNLIMITED_LENGTH : start + maxLength;
+    }
+}
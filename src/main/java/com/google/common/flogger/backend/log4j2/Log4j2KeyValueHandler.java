@@ -18,10 +18,14 @@ package com.google.common.flogger.backend.log4j2;
 
 import com.google.common.flogger.MetadataKey;
 import org.apache.logging.log4j.util.StringMap;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
 public final class Log4j2KeyValueHandler implements MetadataKey.KeyValueHandler {
 
     private final StringMap contextData;
+    // Masks sensitive values as they are emitted (null if redaction is disabled).
+    @NullableDecl
+    private final Log4j2Redactor redactor = Log4j2Redactor.current();
 
     public Log4j2KeyValueHandler(StringMap contextData) {
         this.contextData = contextData;
@@ -33,6 +37,6 @@ public final class Log4j2KeyValueHandler implements MetadataKey.KeyValueHandler
             return;
         }
 
-        contextData.putValue(key, value);
+        contextData.putValue(key, redactor != null ? redactor.redactValue(key, value) : value);
     }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.LogSite;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Logger;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runtime table of log level overrides, keyed by log site or by logger name prefix.
+ *
+ * <p>Changes are rare and made via JMX, while lookups happen for every log statement. Every change
+ * therefore publishes a new immutable {@link Snapshot}, and each backend caches the overrides which
+ * apply to its own logger in a {@link Resolved} instance. Checking whether that cache is still
+ * current is a single volatile read, and when no overrides exist at all the backend falls straight
+ * through to the log4j2 level check.
+ */
+final class Log4j2LevelOverrides implements Log4j2LevelOverridesMBean {
+    // Set this system property to true to avoid registering the MBean (mirrors "log4j2.disable.jmx").
+    private static final String DISABLE_JMX_PROPERTY = "flogger.log4j2.disable.jmx";
+    private static final String OBJECT_NAME = "com.google.common.flogger.backend.log4j2:type=LevelOverrides";
+    private static final Log4j2LevelOverrides INSTANCE = new Log4j2LevelOverrides();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private Log4j2LevelOverrides() {
+    }
+
+    static Log4j2LevelOverrides getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the singleton with the platform MBean server unless disabled. Failures are ignored
+     * since a missing management interface must never prevent logging.
+     */
+    static void registerMBean() {
+        if (Boolean.getBoolean(DISABLE_JMX_PROPERTY)) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer()
+                        .registerMBean(new StandardMBean(INSTANCE, Log4j2LevelOverridesMBean.class), name);
+            }
+        } catch (JMException | SecurityException e) {
+            // intentionally do nothing
+        }
+    }
+
+    /**
+     * Returns the overrides which apply to the logger of the given name.
+     */
+    Resolved resolve(String loggerName) {
+        Snapshot current = snapshot;
+        if (current == Snapshot.EMPTY) {
+            return Resolved.NONE;
+        }
+        Level loggerLevel = null;
+        int longestPrefix = -1;
+        for (Map.Entry<String, Level> entry : current.loggerLevels.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > longestPrefix && matchesPrefix(loggerName, prefix)) {
+                loggerLevel = entry.getValue();
+                longestPrefix = prefix.length();
+            }
+        }
+        List<SiteOverride> sites = new ArrayList<>();
+        for (SiteOverride site : current.siteLevels) {
+            if (isLoggerOfClass(loggerName, site.className)) {
+                sites.add(site);
+            }
+        }
+        return new Resolved(current, loggerLevel, sites.toArray(new SiteOverride[0]));
+    }
+
+    /**
+     * Returns whether the logger of the given name may log from the given class. Loggers are usually
+     * declared in an outer class, while log sites in nested, inner and anonymous classes report their
+     * own class (e.g. {@code Outer$Inner}), so the class and each class enclosing it are checked.
+     */
+    static boolean isLoggerOfClass(String loggerName, String className) {
+        String candidate = className;
+        while (true) {
+            // The backend factory derives logger names from class names in the same way.
+            if (candidate.replace('$', '.').equals(loggerName)) {
+                return true;
+            }
+            int nested = candidate.lastIndexOf('$');
+            if (nested < 0) {
+                return false;
+            }
+            candidate = candidate.substring(0, nested);
+        }
+    }
+
+    static boolean matchesPrefix(String loggerName, String prefix) {
+        return prefix.isEmpty()
+                || (loggerName.startsWith(prefix)
+                && (loggerName.length() == prefix.length() || loggerName.charAt(prefix.length()) == '.'));
+    }
+
+    @Override
+    public synchronized void setLogSiteLevel(
+            String className, String methodName, int lineNumber, String level) {
+        List<SiteOverride> sites = withoutSite(className, methodName, lineNumber);
+        sites.add(new SiteOverride(className, methodName, lineNumber, parseLevel(level)));
+        publish(snapshot.loggerLevels, sites);
+    }
+
+    @Override
+    public synchronized void removeLogSiteLevel(String className, String methodName, int lineNumber) {
+        publish(snapshot.loggerLevels, withoutSite(className, methodName, lineNumber));
+    }
+
+    @Override
+    public synchronized void setLoggerLevel(String loggerNamePrefix, String level) {
+        Map<String, Level> loggerLevels = new HashMap<>(snapshot.loggerLevels);
+        loggerLevels.put(loggerNamePrefix, parseLevel(level));
+        publish(loggerLevels, snapshot.siteLevels);
+    }
+
+    @Override
+    public synchronized void removeLoggerLevel(String loggerNamePrefix) {
+        Map<String, Level> loggerLevels = new HashMap<>(snapshot.loggerLevels);
+        loggerLevels.remove(loggerNamePrefix);
+        publish(loggerLevels, snapshot.siteLevels);
+    }
+
+    @Override
+    public synchronized void clear() {
+        snapshot = Snapshot.EMPTY;
+    }
+
+    @Override
+    public String[] getOverrides() {
+        Snapshot current = snapshot;
+        List<String> overrides = new ArrayList<>();
+        for (Map.Entry<String, Level> entry : current.loggerLevels.entrySet()) {
+            overrides.add("logger " + entry.getKey() + ": " + entry.getValue());
+        }
+        for (SiteOverride site : current.siteLevels) {
+            overrides.add(site.toString());
+        }
+        return overrides.toArray(new String[0]);
+    }
+
+    private List<SiteOverride> withoutSite(String className, String methodName, int lineNumber) {
+        List<SiteOverride> sites = new ArrayList<>();
+        for (SiteOverride site : snapshot.siteLevels) {
+            if (!site.matches(className, methodName, lineNumber)) {
+                sites.add(site);
+            }
+        }
+        return sites;
+    }
+
+    private void publish(Map<String, Level> loggerLevels, List<SiteOverride> siteLevels) {
+        // Always publish a new instance (even if it is empty) so that cached resolutions are refreshed.
+        snapshot = new Snapshot(
+                Collections.unmodifiableMap(new HashMap<>(loggerLevels)),
+                Collections.unmodifiableList(new ArrayList<>(siteLevels)));
+    }
+
+    private static Level parseLevel(String level) {
+        Level parsed = Level.toLevel(level, null);
+        if (parsed == null) {
+            throw new IllegalArgumentException("unknown level: " + level);
+        }
+        return parsed;
+    }
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(), Collections.emptyList());
+
+        final Map<String, Level> loggerLevels;
+        final List<SiteOverride> siteLevels;
+
+        Snapshot(Map<String, Level> loggerLevels, List<SiteOverride> siteLevels) {
+            this.loggerLevels = loggerLevels;
+            this.siteLevels = siteLevels;
+        }
+    }
+
+    private static final class SiteOverride {
+        final String className;
+        final String methodName;
+        final int lineNumber;
+        final Level level;
+
+        SiteOverride(String className, String methodName, int lineNumber, Level level) {
+            this.className = className;
+            this.methodName = methodName;
+            this.lineNumber = lineNumber;
+            this.level = level;
+        }
+
+        boolean matches(String className, String methodName, int lineNumber) {
+            return this.lineNumber == lineNumber
+                    && this.methodName.equals(methodName)
+                    && this.className.equals(className);
+        }
+
+        @Override
+        public String toString() {
+            return "site " + className + "." + methodName + ":" + lineNumber + ": " + level;
+        }
+    }
+
+    /**
+     * The overrides which apply to a single logger, as cached by its backend.
+     */
+    static final class Resolved {
+        static final Resolved NONE = new Resolved(Snapshot.EMPTY, null, new SiteOverride[0]);
+
+        private final Snapshot snapshot;
+        @NullableDecl
+        private final Level loggerLevel;
+        // Usually empty or very short, so a linear scan is cheaper than hashing the log site.
+        private final SiteOverride[] sites;
+        // The most verbose level enabled by any override, used to answer isLoggable() without a site.
+        @NullableDecl
+        private final Level mostVerboseSiteLevel;
+
+        private Resolved(Snapshot snapshot, @NullableDecl Level loggerLevel, SiteOverride[] sites) {
+            this.snapshot = snapshot;
+            this.loggerLevel = loggerLevel;
+            this.sites = sites;
+            Level mostVerbose = null;
+            for (SiteOverride site : sites) {
+                if (mostVerbose == null || site.level.isLessSpecificThan(mostVerbose)) {
+                    mostVerbose = site.level;
+                }
+            }
+            this.mostVerboseSiteLevel = mostVerbose;
+        }
+
+        /**
+         * Returns whether this resolution was made from the current set of overrides.
+         */
+        boolean isCurrent() {
+            return snapshot == INSTANCE.snapshot;
+        }
+
+        boolean isEmpty() {
+            return loggerLevel == null && sites.length == 0;
+        }
+
+        /**
+         * Returns whether any log statement of the logger could be enabled at the given level.
+         */
+        boolean isLoggable(Level level, Logger logger) {
+            if (mostVerboseSiteLevel != null && level.isMoreSpecificThan(mostVerboseSiteLevel)) {
+                return true;
+            }
+            return loggerLevel != null ? level.isMoreSpecificThan(loggerLevel) : logger.isEnabled(level);
+        }
+
+        /**
+         * Returns whether a log statement at the given level and log site is enabled.
+         */
+        boolean isEnabled(Level level, LogSite logSite, Logger logger) {
+            for (SiteOverride site : sites) {
+                if (site.matches(logSite.getClassName(), logSite.getMethodName(), logSite.getLineNumber())) {
+                    return level.isMoreSpecificThan(site.level);
+                }
+            }
+            return loggerLevel != null ? level.isMoreSpecificThan(loggerLevel) : logger.isEnabled(level);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+/**
+ * JMX management interface for runtime log level overrides of the log4j2 backend.
+ *
+ * <p>Levels are given as log4j2 level names (e.g. "DEBUG"). An override replaces the level
+ * configured in log4j2 for the matching log statements, so it can both enable more verbose logging
+ * and silence a noisy logger without reconfiguring log4j2.
+ */
+public interface Log4j2LevelOverridesMBean {
+    /**
+     * Sets the level of a single log site, identified by its class name, method name and line number.
+     * Log site overrides take precedence over logger name overrides.
+     */
+    void setLogSiteLevel(String className, String methodName, int lineNumber, String level);
+
+    /**
+     * Removes the level override of a single log site.
+     */
+    void removeLogSiteLevel(String className, String methodName, int lineNumber);
+
+    /**
+     * Sets the level of all loggers whose name is equal to, or starts with, the given prefix followed
+     * by a dot. If several prefixes match a logger the longest one wins.
+     */
+    void setLoggerLevel(String loggerNamePrefix, String level);
+
+    /**
+     * Removes the level override of a logger name prefix.
+     */
+    void removeLoggerLevel(String loggerNamePrefix);
+
+    /**
+     * Removes all level overrides.
+     */
+    void clear();
+
+    /**
+     * Returns a human readable description of all current level overrides.
+     */
+    String[] getOverrides();
+}
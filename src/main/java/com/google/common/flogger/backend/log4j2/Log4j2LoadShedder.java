@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Raises the effective minimum level of all loggers while the appenders are slow or the heap is
+ * nearly full, so that logging does not make an overloaded process worse.
+ *
+ * <p>Load shedding is enabled by setting at least one of the thresholds:
+ *
+ * <ul>
+ *   <li>{@code flogger.log4j2.shedding.latency_micros}: the moving average of the time it takes to
+ *       dispatch an event to the appenders.
+ *   <li>{@code flogger.log4j2.shedding.heap_percent}: the occupancy of the old generation after the
+ *       last garbage collection, in percent of its maximum size. Young generation pools (eden and
+ *       survivor spaces) are ignored, as they fill up before every young collection. The occupancy is
+ *       polled with each evaluation (at most every 100ms); the usage thresholds of the pools are
+ *       JVM-wide settings which other monitoring may rely on, so they are left alone.
+ * </ul>
+ *
+ * <p>While a threshold is exceeded, the shedding level rises one step at a time (first DEBUG and
+ * TRACE are dropped, then INFO), and it falls back one step at a time once the latency is below half
+ * of its threshold and the heap usage is below 90% of its threshold. Transitions are at least {@code
+ * flogger.log4j2.shedding.hold_millis} (default 5000) apart, so the level does not flap. WARN and ERROR
+ * are never dropped, nor are forced log statements. Every transition is logged as a warning.
+ */
+final class Log4j2LoadShedder {
+    // The levels at and below which statements are dropped, per shedding step.
+    private static final Level[] SHED_LEVELS = {null, Level.DEBUG, Level.INFO};
+    private static final long EVALUATION_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double HEAP_RECOVERY_FACTOR = 0.9;
+
+    private final long latencyThresholdNanos;
+    private final List<MemoryPoolMXBean> heapPools;
+    // The heap threshold as a fraction of the maximum size of a pool.
+    private final double heapFraction;
+    private final long holdNanos;
+    private final Logger transitionLogger = LogManager.getLogger(Log4j2LoadShedder.class);
+
+    // Exponentially weighted moving average of the dispatch latency. Concurrent updates may get lost,
+    // which is fine for an estimate.
+    private volatile long latencyAverageNanos = 0;
+    private volatile long lastSampleNanos;
+    private final AtomicLong lastEvaluationNanos;
+    // Only modified by the thread which won the evaluation.
+    private volatile int step = 0;
+    private long lastTransitionNanos;
+
+    // VisibleForTesting
+    Log4j2LoadShedder(
+            long latencyThresholdNanos,
+            List<MemoryPoolMXBean> heapPools,
+            int heapPercent,
+            long holdNanos,
+            long nowNanos) {
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.heapPools = heapPools;
+        this.heapFraction = heapPercent / 100.0;
+        this.holdNanos = holdNanos;
+        this.lastSampleNanos = nowNanos;
+        this.lastEvaluationNanos = new AtomicLong(nowNanos);
+        this.lastTransitionNanos = nowNanos - holdNanos;
+    }
+
+    /**
+     * Returns the load shedder configured via system properties, or null if load shedding is disabled.
+     */
+    @NullableDecl
+    static Log4j2LoadShedder fromSystemProperties() {
+        long latencyMicros = Long.getLong("flogger.log4j2.shedding.latency_micros", Long.MAX_VALUE);
+        int heapPercent = Integer.getInteger("flogger.log4j2.shedding.heap_percent", 0);
+        if (latencyMicros == Long.MAX_VALUE && heapPercent <= 0) {
+            return null;
+        }
+        return new Log4j2LoadShedder(
+                latencyMicros == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(latencyMicros),
+                heapPercent > 0 ? findHeapPools() : new ArrayList<>(),
+                heapPercent,
+                TimeUnit.MILLISECONDS.toNanos(Long.getLong("flogger.log4j2.shedding.hold_millis", 5000L)),
+                System.nanoTime());
+    }
+
+    // The tenured (old generation) pools, which are the heap pools supporting a usage threshold: the
+    // JVM doesn't support one for eden and survivor spaces. Single generation collectors (e.g. ZGC)
+    // have a single such pool.
+    private static List<MemoryPoolMXBean> findHeapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP
+                    && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * Returns whether statements at the given level are currently dropped.
+     */
+    boolean isShed(Level level) {
+        Level shedLevel = SHED_LEVELS[step];
+        if (shedLevel == null) {
+            return false;
+        }
+        // While shedding, few statements may be dispatched, so recovery is evaluated here as well.
+        maybeEvaluate(System.nanoTime());
+        return level.isLessSpecificThan(shedLevel);
+    }
+
+    /**
+     * Records the time it took to dispatch an event to the appenders.
+     */
+    void recordLatency(long latencyNanos, long nowNanos) {
+        long average = latencyAverageNanos;
+        latencyAverageNanos = average + ((latencyNanos - average) >> 4);
+        lastSampleNanos = nowNanos;
+        maybeEvaluate(nowNanos);
+    }
+
+    private void maybeEvaluate(long nowNanos) {
+        long last = lastEvaluationNanos.get();
+        if (nowNanos - last >= EVALUATION_INTERVAL_NANOS && lastEvaluationNanos.compareAndSet(last, nowNanos)) {
+            double heapUsage = getHeapUsage();
+            evaluate(nowNanos, heapUsage >= heapFraction, heapUsage >= heapFraction * HEAP_RECOVERY_FACTOR);
+        }
+    }
+
+    // Returns the highest occupancy after the last collection of any watched heap pool, as a fraction
+    // of its maximum size. Garbage which a collection would free doesn't count.
+    private double getHeapUsage() {
+        double highest = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0) {
+                highest = Math.max(highest, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+        return highest;
+    }
+
+    // VisibleForTesting
+    void evaluate(long nowNanos, boolean heapHigh, boolean heapAboveRecovery) {
+        if (nowNanos - lastSampleNanos >= EVALUATION_INTERVAL_NANOS) {
+            // Without new samples the old ones become less relevant.
+            latencyAverageNanos /= 2;
+        }
+        long latency = latencyAverageNanos;
+        boolean overloaded = latency > latencyThresholdNanos || heapHigh;
+        boolean recovered = latency < latencyThresholdNanos / 2 && !heapAboveRecovery;
+        if (nowNanos - lastTransitionNanos < holdNanos) {
+            return;
+        }
+        int current = step;
+        if (overloaded && current < SHED_LEVELS.length - 1) {
+            transition(current + 1, nowNanos, latency, heapHigh);
+        } else if (recovered && current > 0) {
+            transition(current - 1, nowNanos, latency, heapHigh);
+        }
+    }
+
+    private void transition(int newStep, long nowNanos, long latency, boolean heapHigh) {
+        Level oldLevel = SHED_LEVELS[step];
+        step = newStep;
+        lastTransitionNanos = nowNanos;
+        Level newLevel = SHED_LEVELS[newStep];
+        transitionLogger.warn(
+                "Flogger load shedding changed from {} to {} (dispatch latency {}us, heap threshold exceeded: {})",
+                oldLevel != null ? "dropping " + oldLevel + " and below" : "none",
+                newLevel != null ? "dropping " + newLevel + " and below" : "none",
+                TimeUnit.NANOSECONDS.toMicros(latency),
+                heapHigh);
+    }
+
+    /**
+     * Returns the level at and below which statements are dropped, or null.
+     */
+    // VisibleForTesting
+    @NullableDecl
+    Level getShedLevel() {
+        return SHED_LEVELS[step];
+    }
+}
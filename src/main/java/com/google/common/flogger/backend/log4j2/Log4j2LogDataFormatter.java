@@ -31,25 +31,22 @@ final class Log4j2LogDataFormatter {
     private Log4j2LogDataFormatter() {
     }
 
-    /**
-     * Formats the log message and any metadata for the given {@link LogData}, calling the supplied
-     * receiver object with the results.
-     */
-    static void format(LogData logData, Log4j2MessageFormatter.SimpleLogHandler receiver) {
-        // SimpleMessageFormatter.format(.., ...) creates message ssuch as Foo='bar' [CONTEXT count=23 id="test ID" ]
-
-        Log4j2MessageFormatter.format(logData, receiver);
-    }
-
     /**
      * Formats the log message in response to an exception during a previous logging attempt. A
      * synthetic error message is generated from the original log data and the given exception is set
-     * as the cause. The level of this record is the maximum of WARNING or the original level.
+     * as the cause. The level of this record is the maximum of WARNING or the original level. A non
+     * zero number of suppressed errors (see {@link Log4j2ErrorCircuitBreaker}) is reported as well.
      */
     static void formatBadLogData(
-            RuntimeException error, LogData badLogData, Log4j2MessageFormatter.SimpleLogHandler receiver) {
+            RuntimeException error,
+            LogData badLogData,
+            long suppressedErrors,
+            Log4j2MessageFormatter.SimpleLogHandler receiver) {
         StringBuilder errorMsg =
                 new StringBuilder("LOGGING ERROR: ").append(error.getMessage()).append('\n');
+        if (suppressedErrors > 0) {
+            errorMsg.append("  suppressed errors at this log site: ").append(suppressedErrors).append('\n');
+        }
         int length = errorMsg.length();
         try {
             appendLogData(badLogData, errorMsg);
@@ -66,6 +63,29 @@ final class Log4j2LogDataFormatter {
         receiver.handleFormattedLogMessage(level, errorMsg.toString(), error);
     }
 
+    /**
+     * Appends the arguments of a statement whose template could not be formatted, one per line and
+     * masked by the current {@link Log4j2Redactor}. Since the arguments can't be matched to their
+     * placeholders, all of them are masked if the template contains a redacted prefix.
+     */
+    static void appendArguments(String template, Object[] arguments, StringBuilder out) {
+        Log4j2Redactor redactor = Log4j2Redactor.current();
+        boolean maskAll = redactor != null && redactor.containsPrefix(template);
+        out.append("\n  original arguments:");
+        for (Object argument : arguments) {
+            out.append("\n    ");
+            if (maskAll) {
+                out.append(Log4j2Redactor.MASK);
+                continue;
+            }
+            int start = out.length();
+            out.append(MessageUtils.safeToString(argument));
+            if (redactor != null) {
+                redactor.redact(out, start, start);
+            }
+        }
+    }
+
     /**
      * Appends the given {@link LogData} to the given {@link StringBuilder}.
      */
@@ -76,17 +96,17 @@ final class Log4j2LogDataFormatter {
         } else {
             // We know that there's at least one argument to display here.
             out.append(data.getTemplateContext().getMessage());
-            out.append("\n  original arguments:");
-            for (Object arg : data.getArguments()) {
-                out.append("\n    ").append(MessageUtils.safeToString(arg));
-            }
+            appendArguments(data.getTemplateContext().getMessage(), data.getArguments(), out);
         }
+        Log4j2Redactor redactor = Log4j2Redactor.current();
         Metadata metadata = data.getMetadata();
         if (metadata.size() > 0) {
             out.append("\n  metadata:");
             for (int n = 0; n < metadata.size(); n++) {
+                String label = metadata.getKey(n).getLabel();
+                Object value = metadata.getValue(n);
                 out.append("\n    ");
-                out.append(metadata.getKey(n).getLabel()).append(": ").append(metadata.getValue(n));
+                out.append(label).append(": ").append(redactor != null ? redactor.redactValue(label, value) : value);
             }
         }
         out.append("\n  level: ").append(data.getLevel());
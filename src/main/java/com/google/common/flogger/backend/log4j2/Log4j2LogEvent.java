@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.LogSite;
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.backend.Metadata;
+import com.google.common.flogger.context.Tags;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.AbstractLogEvent;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.core.time.Instant;
+import org.apache.logging.log4j.core.time.MutableInstant;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringMap;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.Map;
+
+/**
+ * A log4j2 event which wraps the Flogger log data and the logging scope instead of copying them into
+ * the generic log4j2 fields up front.
+ *
+ * <p>The log location, the context data and the context stack are only built when an appender asks
+ * for them, so appenders pay only for what their layout renders. The custom pattern converters
+ * ({@code %fsite}, {@code %fmeta{key}}, {@code %ftags} and {@code %fargs}) read the Flogger data of
+ * these events directly. Everything which depends on the logging thread (thread name and id, the
+ * log4j2 thread context stack) is captured when the event is created. The {@link Log4j2ContextCapture}
+ * of the event decides which context is captured and built at all.
+ *
+ * <p>{@link #toImmutable()} returns a plain log4j2 event, so async loggers and appenders see a
+ * snapshot of all fields; the converters fall back to those fields for such events. Enable with
+ * {@code flogger.log4j2.native_events=true}.
+ */
+final class Log4j2LogEvent extends AbstractLogEvent {
+    private static final long serialVersionUID = 1L;
+
+    private final String loggerName;
+    private final Level level;
+    private final Message message;
+    @NullableDecl
+    private final Throwable thrown;
+    private final transient LogData logData;
+    private final transient Metadata scope;
+    private final transient Tags tags;
+    private final transient Log4j2ContextCapture capture;
+    private final transient Log4j2FormatLimits limits;
+    // The log4j2 thread context stack at creation time, or null if it was empty or is not captured.
+    @NullableDecl
+    private final ThreadContext.ContextStack threadContextStack;
+    private final String threadName;
+    private final long threadId;
+    private final int threadPriority;
+    private final MutableInstant instant = new MutableInstant();
+    private boolean endOfBatch = false;
+    private boolean includeLocation = true;
+
+    // Built on demand. Appenders normally read an event on a single thread, and since the values are
+    // derived from immutable data, racy initialization is benign anyway.
+    @NullableDecl
+    private StackTraceElement source = null;
+    @NullableDecl
+    private StringMap contextData = null;
+    @NullableDecl
+    private ThreadContext.ContextStack contextStack = null;
+    @NullableDecl
+    private ThrowableProxy thrownProxy = null;
+
+    Log4j2LogEvent(
+            String loggerName,
+            Level level,
+            Message message,
+            @NullableDecl Throwable thrown,
+            LogData logData,
+            Metadata scope,
+            Tags tags,
+            Log4j2ContextCapture capture,
+            Log4j2FormatLimits limits,
+            Thread currentThread) {
+        this.loggerName = loggerName;
+        this.level = level;
+        this.message = message;
+        this.thrown = thrown;
+        this.logData = logData;
+        this.scope = scope;
+        this.tags = tags;
+        this.capture = capture;
+        this.limits = limits;
+        boolean capturesThread = capture.capturesThread();
+        this.threadContextStack = !capturesThread || ThreadContext.getDepth() == 0 ? null : ThreadContext.cloneStack();
+        this.threadName = capturesThread ? currentThread.getName() : "";
+        this.threadId = currentThread.getId();
+        this.threadPriority = currentThread.getPriority();
+        long timestampNanos = logData.getTimestampNanos();
+        instant.initFromEpochSecond(
+                Math.floorDiv(timestampNanos, 1_000_000_000L),
+                (int) Math.floorMod(timestampNanos, 1_000_000_000L));
+    }
+
+    LogData getLogData() {
+        return logData;
+    }
+
+    LogSite getLogSite() {
+        return logData.getLogSite();
+    }
+
+    Metadata getScope() {
+        return scope;
+    }
+
+    Tags getTags() {
+        return tags;
+    }
+
+    Log4j2FormatLimits getFormatLimits() {
+        return limits;
+    }
+
+    @Override
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    @Override
+    public Level getLevel() {
+        return level;
+    }
+
+    @Override
+    public Marker getMarker() {
+        return Log4j2TagMarkers.forTags(tags);
+    }
+
+    @Override
+    public Message getMessage() {
+        return message;
+    }
+
+    @Override
+    public Throwable getThrown() {
+        return thrown;
+    }
+
+    @Override
+    public ThrowableProxy getThrownProxy() {
+        if (thrownProxy == null && thrown != null) {
+            thrownProxy = new ThrowableProxy(thrown);
+        }
+        return thrownProxy;
+    }
+
+    @Override
+    public Instant getInstant() {
+        return instant;
+    }
+
+    @Override
+    public long getTimeMillis() {
+        return instant.getEpochMillisecond();
+    }
+
+    @Override
+    public StackTraceElement getSource() {
+        if (source == null) {
+            LogSite logSite = logData.getLogSite();
+            source = new StackTraceElement(
+                    logSite.getClassName(), logSite.getMethodName(), logSite.getFileName(), logSite.getLineNumber());
+        }
+        return source;
+    }
+
+    @Override
+    public ReadOnlyStringMap getContextData() {
+        if (contextData == null) {
+            contextData = capture.createContextMap(scope, logData.getMetadata());
+        }
+        return contextData;
+    }
+
+    @SuppressWarnings("deprecation") // Still part of the LogEvent interface.
+    @Override
+    public Map<String, String> getContextMap() {
+        return getContextData().toMap();
+    }
+
+    @Override
+    public ThreadContext.ContextStack getContextStack() {
+        if (contextStack == null) {
+            contextStack = capture.capturesThread()
+                    ? Log4j2SimpleLogEvent.createContextStack(
+                            tags, threadContextStack != null ? threadContextStack.copy() : null)
+                    : ThreadContext.EMPTY_STACK;
+        }
+        return contextStack;
+    }
+
+    @Override
+    public String getThreadName() {
+        return threadName;
+    }
+
+    @Override
+    public long getThreadId() {
+        return threadId;
+    }
+
+    @Override
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    @Override
+    public boolean isEndOfBatch() {
+        return endOfBatch;
+    }
+
+    @Override
+    public void setEndOfBatch(boolean endOfBatch) {
+        this.endOfBatch = endOfBatch;
+    }
+
+    @Override
+    public boolean isIncludeLocation() {
+        return includeLocation;
+    }
+
+    @Override
+    public void setIncludeLocation(boolean includeLocation) {
+        this.includeLocation = includeLocation;
+    }
+
+    @Override
+    public LogEvent toImmutable() {
+        return Log4jLogEvent.createMemento(this);
+    }
+
+    // The Flogger data is not serializable, so serialize a plain log4j2 event instead.
+    private Object writeReplace() {
+        return toImmutable();
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.LogSite;
+import com.google.common.flogger.backend.LogData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turns log statements into metrics instead of log lines.
+ *
+ * <p>Log sites can be registered as metric sources by message template (e.g. {@code "processed %d
+ * items in %d ms"}) or by log site. Statements from these sources are neither formatted nor written.
+ * Instead, their numeric arguments are folded into a count, sum, min, max and a power-of-two
+ * histogram per template and argument index. Literal statements (without a template) are only
+ * counted, per log site, as their messages are arbitrary strings. Once per {@code flogger.log4j2.metrics.interval_seconds}
+ * (default 60) a single summary event with all aggregates of the interval is logged at INFO by the
+ * logger of this class, and the aggregates are reset.
+ *
+ * <p>Only statements which are enabled for their logger reach the backend, so the logger levels of
+ * the metric sources still apply.
+ */
+public final class Log4j2LogMetrics {
+    private static final long INTERVAL_SECONDS = Long.getLong("flogger.log4j2.metrics.interval_seconds", 60L);
+
+    private static volatile Sources sources = Sources.EMPTY;
+    private static final ConcurrentMap<String, TemplateMetrics> METRICS = new ConcurrentHashMap<>();
+    @NullableDecl
+    private static ScheduledExecutorService scheduler = null;
+
+    private Log4j2LogMetrics() {
+    }
+
+    /**
+     * Registers all log statements with the given message template as metric sources.
+     */
+    public static synchronized void registerTemplate(String messageTemplate) {
+        Set<String> templates = new HashSet<>(sources.templates);
+        templates.add(messageTemplate);
+        update(new Sources(ImmutableSet.copyOf(templates), sources.linesByClass));
+    }
+
+    /**
+     * Unregisters the given message template, dropping the aggregates of statements which are no
+     * longer metric sources.
+     */
+    public static synchronized void unregisterTemplate(String messageTemplate) {
+        Set<String> templates = new HashSet<>(sources.templates);
+        templates.remove(messageTemplate);
+        update(new Sources(ImmutableSet.copyOf(templates), sources.linesByClass));
+        removeUnmatched();
+    }
+
+    /**
+     * Registers the log statement at the given log site (class name and line number) as a metric
+     * source.
+     */
+    public static synchronized void registerLogSite(LogSite logSite) {
+        updateLines(logSite, true);
+    }
+
+    /**
+     * Unregisters the given log site, dropping the aggregates of statements which are no longer metric
+     * sources.
+     */
+    public static synchronized void unregisterLogSite(LogSite logSite) {
+        updateLines(logSite, false);
+        removeUnmatched();
+    }
+
+    private static void removeUnmatched() {
+        Sources current = sources;
+        METRICS.entrySet().removeIf(entry -> !entry.getValue().isMatchedBy(entry.getKey(), current));
+    }
+
+    private static void updateLines(LogSite logSite, boolean add) {
+        Map<String, int[]> linesByClass = new HashMap<>(sources.linesByClass);
+        int[] lines = linesByClass.getOrDefault(logSite.getClassName(), new int[0]);
+        int line = logSite.getLineNumber();
+        boolean present = Arrays.binarySearch(lines, line) >= 0;
+        if (add && !present) {
+            lines = Arrays.copyOf(lines, lines.length + 1);
+            lines[lines.length - 1] = line;
+            Arrays.sort(lines);
+        } else if (!add && present) {
+            lines = Arrays.stream(lines).filter(l -> l != line).toArray();
+        }
+        if (lines.length == 0) {
+            linesByClass.remove(logSite.getClassName());
+        } else {
+            linesByClass.put(logSite.getClassName(), lines);
+        }
+        update(new Sources(sources.templates, ImmutableMap.copyOf(linesByClass)));
+    }
+
+    private static void update(Sources newSources) {
+        sources = newSources;
+        if (scheduler == null && !newSources.isEmpty()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "flogger-log4j2-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(
+                    Log4j2LogMetrics::emitSummary, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Records the given log statement if it comes from a metric source, and returns whether it did.
+     */
+    static boolean record(LogData logData) {
+        Sources current = sources;
+        if (current.isEmpty() || !current.matches(logData)) {
+            return false;
+        }
+        String key = logData.getTemplateContext() != null
+                ? logData.getTemplateContext().getMessage()
+                : literalKey(logData.getLogSite());
+        TemplateMetrics metrics = METRICS.get(key);
+        if (metrics == null) {
+            metrics = METRICS.computeIfAbsent(key, k -> new TemplateMetrics(ConcurrentHashMap.newKeySet()));
+        }
+        metrics.record(
+                logData.getLogSite(), logData.getTemplateContext() != null ? logData.getArguments() : new Object[0]);
+        return true;
+    }
+
+    // Literal statements can only be metric sources by log site, so keying them by log site bounds the
+    // number of aggregates by the number of registered log sites, whatever the messages are.
+    private static String literalKey(LogSite logSite) {
+        return "<literal> " + logSite.getClassName() + ":" + logSite.getLineNumber();
+    }
+
+    private static void emitSummary() {
+        String summary = summarize();
+        if (summary != null) {
+            Logger logger = LogManager.getLogger(Log4j2LogMetrics.class);
+            logger.info(summary);
+        }
+    }
+
+    /**
+     * Returns a summary of the aggregates since the last summary and resets them, or null if nothing
+     * was recorded.
+     */
+    // VisibleForTesting
+    @NullableDecl
+    static String summarize() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, TemplateMetrics> entry : METRICS.entrySet()) {
+            TemplateMetrics metrics = entry.getValue();
+            // Swap in fresh aggregates instead of resetting each field, which would mix statements of the
+            // old and the new interval. Only a statement recorded concurrently with the swap can still
+            // end up in the old aggregates.
+            if (!metrics.isEmpty() && METRICS.replace(entry.getKey(), metrics, new TemplateMetrics(metrics.sites))) {
+                metrics.summarizeTo(entry.getKey(), out);
+            }
+        }
+        return out.length() > 0 ? "log metrics:" + out : null;
+    }
+
+    private static final class Sources {
+        static final Sources EMPTY = new Sources(ImmutableSet.of(), ImmutableMap.of());
+
+        final Set<String> templates;
+        // Sorted line numbers per class name.
+        final Map<String, int[]> linesByClass;
+
+        Sources(Set<String> templates, Map<String, int[]> linesByClass) {
+            this.templates = templates;
+            this.linesByClass = linesByClass;
+        }
+
+        boolean isEmpty() {
+            return templates.isEmpty() && linesByClass.isEmpty();
+        }
+
+        boolean matches(LogData logData) {
+            if (logData.getTemplateContext() != null && templates.contains(logData.getTemplateContext().getMessage())) {
+                return true;
+            }
+            return matches(logData.getLogSite());
+        }
+
+        boolean matches(LogSite logSite) {
+            int[] lines = linesByClass.get(logSite.getClassName());
+            return lines != null && Arrays.binarySearch(lines, logSite.getLineNumber()) >= 0;
+        }
+    }
+
+    private static final class TemplateMetrics {
+        // The log sites recorded with this template, shared by the aggregates of all intervals.
+        private final Set<LogSite> sites;
+        private final LongAdder count = new LongAdder();
+        // Grown on demand, the number of arguments of a template is normally fixed.
+        private volatile AtomicReferenceArray<ArgumentMetrics> arguments = new AtomicReferenceArray<>(0);
+
+        TemplateMetrics(Set<LogSite> sites) {
+            this.sites = sites;
+        }
+
+        void record(LogSite logSite, Object[] args) {
+            if (!sites.contains(logSite)) {
+                sites.add(logSite);
+            }
+            count.increment();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof Number) {
+                    getArgument(i).record((Number) args[i]);
+                }
+            }
+        }
+
+        private ArgumentMetrics getArgument(int index) {
+            AtomicReferenceArray<ArgumentMetrics> current = arguments;
+            if (index >= current.length()) {
+                synchronized (this) {
+                    current = arguments;
+                    if (index >= current.length()) {
+                        AtomicReferenceArray<ArgumentMetrics> grown = new AtomicReferenceArray<>(index + 1);
+                        for (int i = 0; i < current.length(); i++) {
+                            grown.set(i, current.get(i));
+                        }
+                        arguments = grown;
+                        current = grown;
+                    }
+                }
+            }
+            ArgumentMetrics metrics = current.get(index);
+            if (metrics == null) {
+                current.compareAndSet(index, null, new ArgumentMetrics());
+                metrics = current.get(index);
+            }
+            return metrics;
+        }
+
+        boolean isEmpty() {
+            return count.sum() == 0;
+        }
+
+        // Whether the statements with this template are still metric sources.
+        boolean isMatchedBy(String template, Sources current) {
+            if (current.templates.contains(template)) {
+                return true;
+            }
+            for (LogSite logSite : sites) {
+                if (current.matches(logSite)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Must only be called once the aggregates were swapped out.
+        void summarizeTo(String template, StringBuilder out) {
+            long events = count.sum();
+            out.append("\n  \"").append(template).append("\": count=").append(events);
+            AtomicReferenceArray<ArgumentMetrics> current = arguments;
+            for (int i = 0; i < current.length(); i++) {
+                ArgumentMetrics metrics = current.get(i);
+                if (metrics != null) {
+                    metrics.summarizeTo(i, out);
+                }
+            }
+        }
+    }
+
+    private static final class ArgumentMetrics {
+        // Bucket 0 holds values below 1, bucket i holds values in [2^(i-1), 2^i).
+        private static final int BUCKETS = 65;
+
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+        private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+        private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+        private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+        ArgumentMetrics() {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        void record(Number number) {
+            double value = number.doubleValue();
+            count.increment();
+            sum.add(value);
+            min.accumulate(value);
+            max.accumulate(value);
+            long magnitude = (long) Math.abs(value);
+            histogram[64 - Long.numberOfLeadingZeros(magnitude)].increment();
+        }
+
+        void summarizeTo(int index, StringBuilder out) {
+            long values = count.sum();
+            if (values == 0) {
+                return;
+            }
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histogram[i].sum();
+            }
+            out.append(", arg").append(index).append("={count=").append(values)
+                    .append(", sum=").append(sum.sum())
+                    .append(", min=").append(min.get())
+                    .append(", max=").append(max.get())
+                    .append(", p50<").append(percentileBound(buckets, values, 0.5))
+                    .append(", p99<").append(percentileBound(buckets, values, 0.99))
+                    .append('}');
+        }
+
+        // Returns the exclusive upper bound of the bucket holding the given percentile of magnitudes.
+        private static double percentileBound(long[] buckets, long total, double percentile) {
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.pow(2, i);
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+}
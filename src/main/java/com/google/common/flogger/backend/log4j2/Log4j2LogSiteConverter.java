@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.LogSite;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+
+/**
+ * Renders the log site of a Flogger event as {@code class.method:line}, read directly from the log
+ * site. Use {@code %fsite} in a pattern layout.
+ *
+ * <p>Events which are not {@link Log4j2LogEvent}s (e.g. copies made by async loggers) are rendered
+ * from their source location instead.
+ */
+@Plugin(name = "FloggerLogSiteConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({"fsite"})
+public final class Log4j2LogSiteConverter extends LogEventPatternConverter {
+    private static final Log4j2LogSiteConverter INSTANCE = new Log4j2LogSiteConverter();
+
+    private Log4j2LogSiteConverter() {
+        super("FloggerLogSite", "fsite");
+    }
+
+    /**
+     * Called via reflection by log4j2 when a pattern layout uses {@code %fsite}.
+     */
+    public static Log4j2LogSiteConverter newInstance(String[] options) {
+        return INSTANCE;
+    }
+
+    @Override
+    public void format(LogEvent event, StringBuilder toAppendTo) {
+        if (event instanceof Log4j2LogEvent) {
+            LogSite logSite = ((Log4j2LogEvent) event).getLogSite();
+            toAppendTo.append(logSite.getClassName()).append('.').append(logSite.getMethodName())
+                    .append(':').append(logSite.getLineNumber());
+            return;
+        }
+        StackTraceElement source = event.getSource();
+        if (source != null) {
+            toAppendTo.append(source.getClassName()).append('.').append(source.getMethodName())
+                    .append(':').append(source.getLineNumber());
+        }
+    }
+}
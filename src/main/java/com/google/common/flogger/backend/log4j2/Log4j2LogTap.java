@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.backend.Metadata;
+import com.google.common.flogger.context.ContextDataProvider;
+import com.google.common.flogger.context.Tags;
+import com.google.common.flogger.grpc.GrpcContextDataProvider;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the raw log statements handled by the backend to in-process subscribers.
+ *
+ * <p>This follows the protocol of {@code java.util.concurrent.Flow} (which is not available on Java
+ * 8): a subscriber receives {@link Subscriber#onSubscribe}, then at most as many {@link
+ * Subscriber#onNext} signals as it requested via {@link Subscription#request(long)}, all signals
+ * serialized on the given executor. Each subscription has a bounded buffer. The logging thread only
+ * offers entries to the buffer and never waits for a subscriber; if the buffer is full the {@link
+ * OverflowPolicy} decides what is lost. Entries carry the {@link LogData} and the scope metadata and
+ * tags, and are only formatted if a subscriber asks for the message. If the executor rejects a
+ * delivery, the subscription is cancelled and the subscriber receives the rejection via {@link
+ * Subscriber#onError} on the rejecting thread.
+ *
+ * <p>Arguments are kept by reference, so subscribers may observe later modifications of mutable
+ * arguments. The tap never completes, subscribers stop receiving entries by cancelling.
+ */
+public final class Log4j2LogTap {
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "flogger-log4j2-tap");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static volatile TapSubscription[] subscriptions = new TapSubscription[0];
+
+    private Log4j2LogTap() {
+    }
+
+    /**
+     * What to do with a new entry if the buffer of a subscription is full.
+     */
+    public enum OverflowPolicy {
+        /** Drops the new entry. */
+        DROP_NEWEST,
+        /** Drops the oldest buffered entry to make room for the new one. */
+        DROP_OLDEST,
+        /** Keeps only the latest entry, regardless of the buffer size. */
+        CONFLATE
+    }
+
+    /**
+     * Receives entries, mirroring {@code java.util.concurrent.Flow.Subscriber}.
+     */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(Entry entry);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    /**
+     * Controls the demand of a subscriber, mirroring {@code java.util.concurrent.Flow.Subscription}.
+     */
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * A log statement observed by the backend.
+     */
+    public static final class Entry {
+        private final String loggerName;
+        private final LogData logData;
+        private final Metadata scope;
+        private final Tags tags;
+        @NullableDecl
+        private volatile String formattedMessage = null;
+
+        Entry(String loggerName, LogData logData, Metadata scope, Tags tags) {
+            this.loggerName = loggerName;
+            this.logData = logData;
+            this.scope = scope;
+            this.tags = tags;
+        }
+
+        public String getLoggerName() {
+            return loggerName;
+        }
+
+        public LogData getLogData() {
+            return logData;
+        }
+
+        /**
+         * Returns the metadata of the logging scope of the statement.
+         */
+        public Metadata getScope() {
+            return scope;
+        }
+
+        public Tags getTags() {
+            return tags;
+        }
+
+        /**
+         * Returns the message as it is formatted for log4j2, formatting it on first use.
+         */
+        public String getFormattedMessage() {
+            String message = formattedMessage;
+            if (message == null) {
+                message = Log4j2MessageFormatter.formatDefault(logData, Log4j2FormatLimits.UNLIMITED);
+                formattedMessage = message;
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Subscribes with a buffer of the given size, delivering signals on a shared daemon thread pool.
+     */
+    public static void subscribe(Subscriber subscriber, int bufferSize, OverflowPolicy policy) {
+        subscribe(subscriber, bufferSize, policy, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Subscribes with a buffer of the given size, delivering signals on the given executor.
+     */
+    public static void subscribe(Subscriber subscriber, int bufferSize, OverflowPolicy policy, Executor executor) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive: " + bufferSize);
+        }
+        TapSubscription subscription = new TapSubscription(
+                subscriber, policy == OverflowPolicy.CONFLATE ? 1 : bufferSize, policy, executor);
+        synchronized (Log4j2LogTap.class) {
+            TapSubscription[] current = subscriptions;
+            TapSubscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+        subscription.start();
+    }
+
+    private static synchronized void remove(TapSubscription subscription) {
+        subscriptions = Arrays.stream(subscriptions)
+                .filter(s -> s != subscription)
+                .toArray(TapSubscription[]::new);
+    }
+
+    /**
+     * Offers the given statement to all subscribers, never blocking.
+     */
+    static void publish(String loggerName, LogData logData) {
+        TapSubscription[] current = subscriptions;
+        if (current.length == 0) {
+            return;
+        }
+        ContextDataProvider contextDataProvider = GrpcContextDataProvider.getInstance();
+        Entry entry = new Entry(loggerName, logData, contextDataProvider.getMetadata(), contextDataProvider.getTags());
+        for (TapSubscription subscription : current) {
+            subscription.offer(entry);
+        }
+    }
+
+    private static final class TapSubscription implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        // Lock-free, so that logging threads don't contend with each other or with the drain. The size is
+        // tracked separately, as ConcurrentLinkedQueue.size() traverses the queue.
+        private final ConcurrentLinkedQueue<Entry> buffer = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final Executor executor;
+        private final AtomicLong demand = new AtomicLong();
+        // Number of pending drain requests, signals are delivered by whoever increments it from zero.
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean subscribed = false;
+        private volatile boolean cancelled = false;
+        @NullableDecl
+        private volatile Throwable pendingError = null;
+
+        TapSubscription(Subscriber subscriber, int bufferSize, OverflowPolicy policy, Executor executor) {
+            this.subscriber = subscriber;
+            this.capacity = bufferSize;
+            this.policy = policy;
+            this.executor = executor;
+        }
+
+        void start() {
+            scheduleDrain();
+        }
+
+        void offer(Entry entry) {
+            if (cancelled) {
+                return;
+            }
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                // Reserve the slot first, so that concurrent offers can't overfill the buffer.
+                if (size.incrementAndGet() > capacity) {
+                    size.decrementAndGet();
+                    return;
+                }
+                buffer.offer(entry);
+            } else {
+                buffer.offer(entry);
+                if (size.incrementAndGet() > capacity) {
+                    poll();
+                }
+            }
+            if (demand.get() > 0) {
+                scheduleDrain();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                pendingError = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            remove(this);
+            buffer.clear();
+            size.set(0);
+        }
+
+        @NullableDecl
+        private Entry poll() {
+            Entry entry = buffer.poll();
+            if (entry != null) {
+                size.decrementAndGet();
+            }
+            return entry;
+        }
+
+        private void scheduleDrain() {
+            if (cancelled || pendingDrains.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // No drain is running, as this thread took the drain, so the signals stay serialized.
+                pendingDrains.set(0);
+                cancel();
+                try {
+                    if (!subscribed) {
+                        subscribed = true;
+                        subscriber.onSubscribe(this);
+                    }
+                    subscriber.onError(e);
+                } catch (RuntimeException subscriberError) {
+                    // Never fail the logging thread because of a subscriber.
+                    Log4j2Counters.recordError();
+                }
+            }
+        }
+
+        // Delivers signals, never concurrently with itself.
+        @Override
+        public void run() {
+            int drains = 1;
+            do {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+                deliver();
+                drains = pendingDrains.addAndGet(-drains);
+            } while (drains != 0);
+        }
+
+        private void deliver() {
+            Throwable error = pendingError;
+            if (error != null && !cancelled) {
+                cancel();
+                subscriber.onError(error);
+                return;
+            }
+            while (!cancelled && demand.get() > 0) {
+                Entry entry = poll();
+                if (entry == null) {
+                    return;
+                }
+                demand.decrementAndGet();
+                try {
+                    subscriber.onNext(entry);
+                } catch (RuntimeException e) {
+                    cancel();
+                    subscriber.onError(e);
+                }
+            }
+        }
+    }
+}
@@ -16,15 +16,37 @@
 
 package com.google.common.flogger.backend.log4j2;
 
+import com.google.common.flogger.LogSite;
 import com.google.common.flogger.backend.LogData;
 import com.google.common.flogger.backend.LoggerBackend;
+import com.google.common.flogger.context.Tags;
+import com.google.common.flogger.grpc.GrpcContextDataProvider;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A logging backend that uses log4j2 to output log statements.
  */
 final class Log4j2LoggerBackend extends LoggerBackend {
+    private static final Log4j2Dispatcher DISPATCHER = Log4j2Dispatcher.fromSystemProperties();
+    // Null unless load shedding is enabled.
+    @NullableDecl
+    private static final Log4j2LoadShedder LOAD_SHEDDER = Log4j2LoadShedder.fromSystemProperties();
+
     private final Logger logger;
+    // The level overrides which apply to this logger. Resolutions are immutable, so racy updates of
+    // this field are benign (at worst a resolution is computed more than once).
+    private Log4j2LevelOverrides.Resolved levelOverrides = Log4j2LevelOverrides.Resolved.NONE;
+    // The character budgets for formatting, cached in the same way as the level overrides.
+    private Log4j2FormatLimits formatLimits = Log4j2FormatLimits.UNLIMITED;
+    // The context captured per level, cached in the same way as well.
+    private Log4j2ContextCapture.Resolved contextCapture = Log4j2ContextCapture.Resolved.DEFAULT;
 
     // VisibleForTesting
     Log4j2LoggerBackend(Logger logger) {
@@ -57,23 +79,247 @@ final class Log4j2LoggerBackend extends LoggerBackend {
 
     @Override
     public boolean isLoggable(java.util.logging.Level level) {
-        return logger.isEnabled(toLog4jLevel(level));
+        org.apache.logging.log4j.Level log4jLevel = toLog4jLevel(level);
+        if (LOAD_SHEDDER != null && LOAD_SHEDDER.isShed(log4jLevel)) {
+            Log4j2Counters.recordDroppedEvent();
+            return false;
+        }
+        Log4j2LevelOverrides.Resolved overrides = getLevelOverrides();
+        boolean loggable = overrides.isEmpty()
+                ? logger.isEnabled(log4jLevel)
+                : overrides.isLoggable(log4jLevel, logger);
+        if (!loggable) {
+            // Statements which are not written normally may still be kept by the tail buffer of a scope.
+            Log4j2TailBuffer tailBuffer = Log4j2TailBuffer.current();
+            return tailBuffer != null && tailBuffer.isBuffered(log4jLevel);
+        }
+        return true;
+    }
+
+    private Log4j2LevelOverrides.Resolved getLevelOverrides() {
+        Log4j2LevelOverrides.Resolved overrides = levelOverrides;
+        if (!overrides.isCurrent()) {
+            overrides = Log4j2LevelOverrides.getInstance().resolve(logger.getName());
+            levelOverrides = overrides;
+        }
+        return overrides;
+    }
+
+    private Log4j2FormatLimits getFormatLimits() {
+        Log4j2FormatLimits limits = formatLimits;
+        if (!limits.isCurrent()) {
+            limits = Log4j2FormatLimits.resolve(logger.getName());
+            formatLimits = limits;
+        }
+        return limits;
+    }
+
+    private Log4j2ContextCapture getContextCapture(org.apache.logging.log4j.Level level) {
+        Log4j2ContextCapture.Resolved capture = contextCapture;
+        if (!capture.isCurrent()) {
+            capture = Log4j2ContextCapture.resolve(logger.getName());
+            contextCapture = capture;
+        }
+        return capture.forLevel(level);
+    }
+
+    private boolean isEnabled(org.apache.logging.log4j.Level level, LogSite logSite) {
+        Log4j2LevelOverrides.Resolved overrides = getLevelOverrides();
+        return overrides.isEmpty() ? logger.isEnabled(level) : overrides.isEnabled(level, logSite, logger);
+    }
+
+    // Runs the filters of the configuration with the marker of the current tags, so that tag based
+    // filters drop statements before they are formatted. With level overrides the level of the logger
+    // may not apply, so the filters run on the finished event only (as for every event).
+    private boolean isFilteredByTags(org.apache.logging.log4j.Level level) {
+        Tags tags = GrpcContextDataProvider.getInstance().getTags();
+        if (tags.isEmpty() || !getLevelOverrides().isEmpty()) {
+            return false;
+        }
+        return !logger.isEnabled(level, Log4j2TagMarkers.forTags(tags));
     }
 
-    private void log(Log4j2SimpleLogEvent logEntry, boolean wasForced) {
-        if (wasForced || logger.isEnabled(logEntry.getLevel())) {
-            logger.get().log(logEntry.asLoggingEvent());
+    private void log(Log4j2SimpleLogEvent logEntry, LogData logData) {
+        if (logData.wasForced() || isEnabled(logEntry.getLevel(), logData.getLogSite())) {
+            LogEvent event = logEntry.asLoggingEvent(getContextCapture(logEntry.getLevel()));
+            if (LOAD_SHEDDER != null) {
+                dispatchMeasured(event);
+            } else {
+                DISPATCHER.dispatch(logger, event);
+            }
         }
     }
 
+    private void dispatchMeasured(LogEvent event) {
+        long start = System.nanoTime();
+        DISPATCHER.dispatch(logger, event);
+        long end = System.nanoTime();
+        LOAD_SHEDDER.recordLatency(end - start, end);
+    }
+
     @Override
     public void log(LogData logData) {
-        log(Log4j2SimpleLogEvent.create(logger, logData), logData.wasForced());
+        Log4j2LogTap.publish(logger.getName(), logData);
+        // Statements of metric sources are aggregated instead of being formatted.
+        if (Log4j2LogMetrics.record(logData)) {
+            return;
+        }
+        Log4j2TailBuffer tailBuffer = Log4j2TailBuffer.current();
+        if (tailBuffer != null && tailBuffer.handle(this, logData, toLog4jLevel(logData.getLevel()))) {
+            return;
+        }
+        if (!logData.wasForced() && isFilteredByTags(toLog4jLevel(logData.getLevel()))) {
+            return;
+        }
+        Log4j2ScopeBudget budget = Log4j2ScopeBudget.current();
+        if (budget != null && !budget.tryAcquire(this)) {
+            return;
+        }
+        if (Log4j2FlightRecorder.isLogEventEnabled()) {
+            logRecorded(logData, budget);
+            return;
+        }
+        Log4j2SimpleLogEvent logEntry = Log4j2SimpleLogEvent.create(logger, logData, getFormatLimits());
+        if (budget != null) {
+            budget.record(logEntry.getFormattedLength());
+        }
+        log(logEntry, logData);
+    }
+
+    // Only used while a flight recording includes log events, so the timing stays off the normal path.
+    private void logRecorded(LogData logData, @NullableDecl Log4j2ScopeBudget budget) {
+        long start = System.nanoTime();
+        Log4j2SimpleLogEvent logEntry = Log4j2SimpleLogEvent.create(logger, logData, getFormatLimits());
+        long formatted = System.nanoTime();
+        if (budget != null) {
+            budget.record(logEntry.getFormattedLength());
+        }
+        log(logEntry, logData);
+        Log4j2FlightRecorder.commitLogEvent(
+                logger.getName(),
+                logEntry.getLevel(),
+                logData.getLogSite(),
+                logEntry.getFormattedLength(),
+                formatted - start,
+                System.nanoTime() - formatted);
+    }
+
+    /**
+     * Logs the given statements as one batch (see {@link Log4j2BatchLogger}). The scope context is
+     * captured once and shared by all events, the level of each statement is checked before it is
+     * formatted, and the events are dispatched together, with the last one marked as end of batch.
+     */
+    void logBatch(List<? extends LogData> batch) {
+        if (Log4j2TailBuffer.current() != null
+                || Log4j2ScopeBudget.current() != null
+                || Log4j2FlightRecorder.isLogEventEnabled()) {
+            // Tail buffers, budgets and recordings work per statement.
+            for (LogData logData : batch) {
+                logBatched(logData);
+            }
+            return;
+        }
+        Log4j2SimpleLogEvent.Batch context =
+                new Log4j2SimpleLogEvent.Batch(GrpcContextDataProvider.getInstance(), Thread.currentThread());
+        List<LogEvent> events = new ArrayList<>(batch.size());
+        for (LogData logData : batch) {
+            try {
+                Log4j2LogTap.publish(logger.getName(), logData);
+                if (Log4j2LogMetrics.record(logData)) {
+                    continue;
+                }
+                org.apache.logging.log4j.Level level = toLog4jLevel(logData.getLevel());
+                if (!logData.wasForced() && !isBatchedLoggable(level, logData.getLogSite())) {
+                    continue;
+                }
+                Log4j2SimpleLogEvent logEntry = Log4j2SimpleLogEvent.create(logger, logData, getFormatLimits());
+                events.add(logEntry.asBatchEvent(context, getContextCapture(level)));
+            } catch (RuntimeException e) {
+                handleError(e, logData);
+            }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        events.get(events.size() - 1).setEndOfBatch(true);
+        if (LOAD_SHEDDER != null) {
+            long start = System.nanoTime();
+            DISPATCHER.dispatchAll(logger, events);
+            long end = System.nanoTime();
+            LOAD_SHEDDER.recordLatency((end - start) / events.size(), end);
+        } else {
+            DISPATCHER.dispatchAll(logger, events);
+        }
+    }
+
+    // The checks which the frontend and log(LogData) make for single statements.
+    private boolean isBatchedLoggable(org.apache.logging.log4j.Level level, LogSite logSite) {
+        if (LOAD_SHEDDER != null && LOAD_SHEDDER.isShed(level)) {
+            Log4j2Counters.recordDroppedEvent();
+            return false;
+        }
+        return isEnabled(level, logSite) && !isFilteredByTags(level);
+    }
+
+    private void logBatched(LogData logData) {
+        try {
+            if (logData.wasForced() || isLoggable(logData.getLevel())) {
+                log(logData);
+            }
+        } catch (RuntimeException e) {
+            handleError(e, logData);
+        }
+    }
+
+    /**
+     * Writes a statement released by a tail buffer, regardless of the level of the logger.
+     */
+    void logBuffered(LogData logData) {
+        Log4j2SimpleLogEvent logEntry = Log4j2SimpleLogEvent.create(logger, logData, getFormatLimits());
+        DISPATCHER.dispatch(logger, logEntry.asLoggingEvent(getContextCapture(logEntry.getLevel())));
+    }
+
+    /**
+     * Writes the report of a scope which exceeded its budget, with the metadata of that scope.
+     */
+    void logBudgetExceeded(String message) {
+        DISPATCHER.dispatch(logger, Log4jLogEvent.newBuilder()
+                .setLoggerName(logger.getName())
+                .setLoggerFqcn(null)
+                .setLevel(org.apache.logging.log4j.Level.WARN)
+                .setMessage(new SimpleMessage(message))
+                .setTimeMillis(System.currentTimeMillis())
+                .setContextData(Log4j2ContextDataInjector.getScopeContextData(GrpcContextDataProvider.getInstance()))
+                .build());
+    }
+
+    /**
+     * Writes the number of logging errors suppressed at the given log site which no later error
+     * reported.
+     */
+    void logSuppressedErrors(LogSite logSite, long suppressed) {
+        DISPATCHER.dispatch(logger, Log4jLogEvent.newBuilder()
+                .setLoggerName(logger.getName())
+                .setLoggerFqcn(null)
+                .setLevel(org.apache.logging.log4j.Level.WARN)
+                .setMessage(new SimpleMessage("suppressed errors at log site "
+                        + logSite.getClassName() + "." + logSite.getMethodName() + ":" + logSite.getLineNumber()
+                        + ": " + suppressed))
+                .setTimeMillis(System.currentTimeMillis())
+                .build());
     }
 
     @Override
     public void handleError(RuntimeException error, LogData badData) {
-        log(Log4j2SimpleLogEvent.error(logger, error, badData), badData.wasForced());
+        // A broken log site tends to fail for every call, so avoid rendering a storm of error events.
+        Log4j2Counters.recordError();
+        long suppressed =
+                Log4j2ErrorCircuitBreaker.getInstance().record(this, badData.getLogSite(), badData.getTimestampNanos());
+        if (suppressed != Log4j2ErrorCircuitBreaker.SUPPRESS) {
+            log(Log4j2SimpleLogEvent.error(logger, error, badData, suppressed), badData);
+        } else {
+            Log4j2Counters.recordSuppressedError();
+        }
     }
 }
 
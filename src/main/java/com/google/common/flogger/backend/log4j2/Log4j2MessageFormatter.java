@@ -28,17 +28,22 @@ import com.google.common.flogger.parameter.DateTimeFormat;
 import com.google.common.flogger.parameter.Parameter;
 import com.google.common.flogger.parameter.ParameterVisitor;
 import com.google.common.flogger.parser.MessageBuilder;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
 import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Formattable;
 import java.util.FormattableFlags;
 import java.util.Formatter;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Level;
 
 import static com.google.common.flogger.backend.FormatOptions.*;
@@ -50,6 +55,8 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
     private static final String MISSING_ARGUMENT_MESSAGE = "[ERROR: MISSING LOG ARGUMENT]";
     // Literal string to be appended wherever additional unused arguments are provided.
     private static final String EXTRA_ARGUMENT_MESSAGE = " [ERROR: UNUSED LOG ARGUMENTS]";
+    // Literal string to be appended wherever an argument or message was cut at its character budget.
+    private static final String ELISION_MARKER = "...";
     // It would be more "proper" to use "Locale.getDefault(Locale.Category.FORMAT)" here, but also
     // removes the capability of optimising certain formatting operations.
     private static final Locale FORMAT_LOCALE = Locale.ROOT;
@@ -59,13 +66,30 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
     // Input argument array reference (not copied).
     private final Object[] args;
     // Buffer into which the message is formatted.
-    private final StringBuilder out = new StringBuilder();
+    private final StringBuilder out;
+    // The length of the buffer before formatting started (it need not be empty).
+    private final int messageStart;
     // The start of the next literal sub-section of the message that needs processing.
     private int literalStart = 0;
-
-    private Log4j2MessageFormatter(TemplateContext context, Object[] args) {
+    // Character budgets, see Log4j2FormatLimits.
+    private final int maxArgumentLength;
+    private final int maxMessageLength;
+    // The number of elision marker characters in the buffer (which do not count against the budget).
+    private int elidedLength = 0;
+    // The exclusive end of the budget for the argument currently being appended.
+    private int argumentEnd = Log4j2FormatLimits.UNLIMITED_LENGTH;
+    // Masks sensitive values in each argument as it is appended (null if redaction is disabled).
+    @NullableDecl
+    private final Log4j2Redactor redactor = Log4j2Redactor.current();
+
+    private Log4j2MessageFormatter(
+            TemplateContext context, Object[] args, Log4j2FormatLimits limits, StringBuilder out) {
         super(context);
         this.args = checkNotNull(args, "log arguments");
+        this.out = out;
+        this.messageStart = out.length();
+        this.maxArgumentLength = limits.getMaxArgumentLength();
+        this.maxMessageLength = limits.getMaxMessageLength();
     }
 
     /**
@@ -97,6 +121,45 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
             Log4j2MessageFormatter.SimpleLogHandler receiver,
             Log4j2MessageFormatter.Option option,
             Log4j2MessageFormatter.MetadataPredicate metadataPredicate
+    ) {
+        format(logData, receiver, option, metadataPredicate, Log4j2FormatLimits.UNLIMITED);
+    }
+
+    /**
+     * Formats the log message for the given {@link LogData} within the given character budgets,
+     * calling the supplied receiver object with the results.
+     */
+    static void format(
+            LogData logData,
+            Log4j2MessageFormatter.SimpleLogHandler receiver,
+            Log4j2FormatLimits limits
+    ) {
+        format(logData, receiver, Log4j2MessageFormatter.Option.DEFAULT, FORMAT_ALL_METADATA, limits);
+    }
+
+    /**
+     * Formats the message of the given {@link LogData} within the given character budgets.
+     *
+     * <p>This is the core path taken for every log statement. Unlike the {@code format()} methods it
+     * has no receiver callback and no metadata predicate (the default option never renders metadata
+     * into the message), so all of its calls have a single receiver type and can be inlined.
+     */
+    static String formatDefault(LogData logData, Log4j2FormatLimits limits) {
+        TemplateContext ctx = logData.getTemplateContext();
+        if (ctx == null) {
+            return formatLiteral(logData.getLiteralArgument(), limits);
+        }
+        StringBuilder out = new StringBuilder();
+        formatArguments(ctx, logData.getArguments(), limits, out);
+        return out.toString();
+    }
+
+    private static void format(
+            LogData logData,
+            Log4j2MessageFormatter.SimpleLogHandler receiver,
+            Log4j2MessageFormatter.Option option,
+            Log4j2MessageFormatter.MetadataPredicate metadataPredicate,
+            Log4j2FormatLimits limits
     ) {
         Metadata metadata = logData.getMetadata();
         Throwable thrown = metadata.findValue(LogContext.Key.LOG_CAUSE);
@@ -114,9 +177,9 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
         TemplateContext ctx = logData.getTemplateContext();
         String message;
         if (ctx == null) {
-            message = formatLiteralMessage(logData, option, hasOnlyKnownMetadata);
+            message = formatLiteralMessage(logData, option, hasOnlyKnownMetadata, limits);
         } else {
-            StringBuilder buffer = formatMessage(logData, option);
+            StringBuilder buffer = formatMessage(logData, option, limits);
             message = buffer.toString();
         }
         receiver.handleFormattedLogMessage(logData.getLevel(), message, thrown);
@@ -194,20 +257,30 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
      * does not format only metadata, only the message and its arguments. It may also prepend the
      * message with the log site information (depending on the given formatting option).
      */
-    private static StringBuilder formatMessage(LogData logData, Log4j2MessageFormatter.Option option) {
-        Log4j2MessageFormatter formatter =
-                new Log4j2MessageFormatter(logData.getTemplateContext(), logData.getArguments());
-        StringBuilder out = formatter.build();
-        if (logData.getArguments().length > formatter.getExpectedArgumentCount()) {
-            // TODO(dbeaumont): Do better and look at adding formatted values or maybe just a count?
-            out.append(EXTRA_ARGUMENT_MESSAGE);
-        }
+    private static StringBuilder formatMessage(
+            LogData logData, Log4j2MessageFormatter.Option option, Log4j2FormatLimits limits) {
+        StringBuilder out = new StringBuilder();
+        formatArguments(logData.getTemplateContext(), logData.getArguments(), limits, out);
         if (option == Log4j2MessageFormatter.Option.WITH_LOG_SITE) {
             prependLogSite(out, logData.getLogSite());
         }
         return out;
     }
 
+    /**
+     * Appends the message of the given template context, formatted with the given arguments, to the
+     * given buffer.
+     */
+    static void formatArguments(
+            TemplateContext context, Object[] args, Log4j2FormatLimits limits, StringBuilder out) {
+        Log4j2MessageFormatter formatter = new Log4j2MessageFormatter(context, args, limits, out);
+        formatter.build();
+        if (args.length > formatter.getExpectedArgumentCount()) {
+            // TODO(dbeaumont): Do better and look at adding formatted values or maybe just a count?
+            out.append(EXTRA_ARGUMENT_MESSAGE);
+        }
+    }
+
     private static boolean shouldFormat(MetadataKey<?> key, Log4j2MessageFormatter.MetadataPredicate metadataPredicate) {
         // The cause is special and is never formatted like other metadata (it's also the most common,
         // so checking for it first is good).
@@ -216,7 +289,7 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
 
     // TODO: Factor out this logic more to allow subclasses to easily support other types.
     private static void appendFormatted(
-            StringBuilder out, Object value, FormatChar format, FormatOptions options) {
+            StringBuilder out, Object value, FormatChar format, FormatOptions options, int end) {
         // Fast path switch statement for commonest cases (we could handle upper-case as a post
         // processing step but it's so uncommon it doesn't seem worth it).
         switch (format) {
@@ -225,7 +298,11 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
                 if (!(value instanceof Formattable)) {
                     if (options.isDefault()) {
                         // %s on a non-Formattable instance is the single most common case by far.
-                        out.append(safeToString(value));
+                        if (end == Log4j2FormatLimits.UNLIMITED_LENGTH) {
+                            safeAppend(out, value);
+                        } else {
+                            safeAppendBounded(out, value, end);
+                        }
                         return;
                     }
                     break;
@@ -272,7 +349,12 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
             default:
                 // Fall through.
         }
-        // Default handle for rare cases that need non-trivial formatting.
+        appendFormattedSlow(out, value, format, options);
+    }
+
+    // Default handling for rare cases that need non-trivial formatting, kept out of appendFormatted()
+    // so that the common cases stay small enough to be inlined.
+    private static void appendFormattedSlow(StringBuilder out, Object value, FormatChar format, FormatOptions options) {
         String formatString = format.getDefaultFormatString();
         if (!options.isDefault()) {
             char chr = format.getChar();
@@ -335,11 +417,9 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
     private static String formatLiteralMessage(
             LogData logData,
             Log4j2MessageFormatter.Option option,
-            boolean hasOnlyKnownMetadata) {
-        // If a literal message (no arguments) is logged and no metadata exists, just use the string.
-        // Having no format arguments is fairly common and this avoids allocating StringBuilders and
-        // formatter instances in a lot of situations.
-        String message = safeToString(logData.getLiteralArgument());
+            boolean hasOnlyKnownMetadata,
+            Log4j2FormatLimits limits) {
+        String message = formatLiteral(logData.getLiteralArgument(), limits);
         if (option == Log4j2MessageFormatter.Option.DEFAULT && hasOnlyKnownMetadata) {
             return message;
         }
@@ -353,6 +433,20 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
         return builder.toString();
     }
 
+    private static String formatLiteral(@NullableDecl Object literal, Log4j2FormatLimits limits) {
+        // If a literal message (no arguments) is logged, just use the string. Having no format
+        // arguments is fairly common and this avoids allocating StringBuilders and formatter instances
+        // in a lot of situations.
+        if (limits.getMaxMessageLength() == Log4j2FormatLimits.UNLIMITED_LENGTH) {
+            return safeToString(literal);
+        }
+        StringBuilder bounded = new StringBuilder();
+        int end = limits.getMaxMessageLength();
+        safeAppendBounded(bounded, literal, end);
+        elide(bounded, end);
+        return bounded.toString();
+    }
+
     private static void prependLogSite(StringBuilder out, LogSite logSite) {
         if (logSite == LogSite.INVALID) {
             return;
@@ -408,23 +502,231 @@ public final class Log4j2MessageFormatter extends MessageBuilder<StringBuilder>
         return Arrays.toString((Object[]) value);
     }
 
+    /**
+     * Appends a string representation of the user supplied value (as {@link #safeToString(Object)}),
+     * accounting for any possible runtime exceptions. Values which can write themselves into the
+     * buffer ({@link StringBuilderFormattable} and {@link CharSequence}) are appended directly, without
+     * creating an intermediate string.
+     */
+    private static void safeAppend(StringBuilder out, @NullableDecl Object value) {
+        if (value instanceof String) {
+            out.append((String) value);
+            return;
+        }
+        if (!(value instanceof StringBuilderFormattable) && !(value instanceof CharSequence)) {
+            out.append(safeToString(value));
+            return;
+        }
+        safeAppendDirectly(out, value);
+    }
+
+    private static void safeAppendDirectly(StringBuilder out, Object value) {
+        // We may need to undo an arbitrary amount of appending if there is an error.
+        int originalLength = out.length();
+        try {
+            if (value instanceof StringBuilderFormattable) {
+                ((StringBuilderFormattable) value).formatTo(out);
+            } else {
+                out.append((CharSequence) value);
+            }
+        } catch (RuntimeException e) {
+            out.setLength(originalLength);
+            out.append(getErrorString(value, e));
+        }
+    }
+
+    /**
+     * Appends a user supplied value which is rendered without its message (e.g. by {@code %fargs}),
+     * redacted by the given redactor (if any) and cut at the given end index with an elision marker.
+     */
+    static void appendArgument(
+            StringBuilder out, @NullableDecl Object value, int end, @NullableDecl Log4j2Redactor redactor) {
+        int start = out.length();
+        if (end == Log4j2FormatLimits.UNLIMITED_LENGTH) {
+            out.append(safeToString(value));
+        } else {
+            safeAppendBounded(out, value, end);
+        }
+        // Redact before cutting, so that a cut secret is still recognized.
+        if (redactor != null) {
+            redactor.redact(out, start, start);
+        }
+        elide(out, end);
+    }
+
+    /**
+     * Appends a string representation of the user supplied value (as {@link #safeToString(Object)})
+     * without appending (much) more than needed to reach the given end index. Arrays, collections and
+     * maps are appended element by element and stop as soon as the end is reached. The caller is
+     * expected to cut the buffer at the end index (see {@link #elide(StringBuilder, int)}).
+     */
+    private static void safeAppendBounded(StringBuilder out, @NullableDecl Object value, int end) {
+        int start = out.length();
+        try {
+            appendBounded(out, value, end);
+        } catch (RuntimeException e) {
+            out.setLength(start);
+            out.append(getErrorString(value, e));
+        }
+    }
+
+    private static void appendBounded(StringBuilder out, @NullableDecl Object value, int end) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof CharSequence) {
+            appendTruncated(out, (CharSequence) value, end);
+        } else if (value instanceof StringBuilderFormattable) {
+            // Can't be stopped early, but at least doesn't create an intermediate string.
+            ((StringBuilderFormattable) value).formatTo(out);
+        } else if (value.getClass().isArray()) {
+            appendArray(out, value, end);
+        } else if (value instanceof Collection) {
+            appendCollection(out, (Collection<?>) value, end);
+        } else if (value instanceof Map) {
+            appendMap(out, (Map<?, ?>) value, end);
+        } else {
+            appendTruncated(out, String.valueOf(value), end);
+        }
+    }
+
+    // Appends one character more than fits, so the caller can tell that the value was cut.
+    private static void appendTruncated(StringBuilder out, CharSequence value, int end) {
+        long remaining = (long) end - out.length() + 1;
+        if (remaining > 0) {
+            out.append(value, 0, (int) Math.min(value.length(), remaining));
+        }
+    }
+
+    // Same format as Arrays.toString().
+    private static void appendArray(StringBuilder out, Object array, int end) {
+        int length = Array.getLength(array);
+        out.append('[');
+        for (int i = 0; i < length && out.length() <= end; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            if (array instanceof Object[]) {
+                appendTruncated(out, String.valueOf(((Object[]) array)[i]), end);
+            } else if (array instanceof int[]) {
+                out.append(((int[]) array)[i]);
+            } else if (array instanceof long[]) {
+                out.append(((long[]) array)[i]);
+            } else if (array instanceof byte[]) {
+                out.append(((byte[]) array)[i]);
+            } else if (array instanceof char[]) {
+                out.append(((char[]) array)[i]);
+            } else if (array instanceof short[]) {
+                out.append(((short[]) array)[i]);
+            } else if (array instanceof float[]) {
+                out.append(((float[]) array)[i]);
+            } else if (array instanceof double[]) {
+                out.append(((double[]) array)[i]);
+            } else {
+                out.append(((boolean[]) array)[i]);
+            }
+        }
+        out.append(']');
+    }
+
+    // Same format as AbstractCollection.toString().
+    private static void appendCollection(StringBuilder out, Collection<?> collection, int end) {
+        out.append('[');
+        Iterator<?> it = collection.iterator();
+        for (boolean first = true; it.hasNext() && out.length() <= end; first = false) {
+            if (!first) {
+                out.append(", ");
+            }
+            Object element = it.next();
+            if (element == collection) {
+                out.append("(this Collection)");
+            } else {
+                appendElement(out, element, end);
+            }
+        }
+        out.append(']');
+    }
+
+    // Same format as AbstractMap.toString().
+    private static void appendMap(StringBuilder out, Map<?, ?> map, int end) {
+        out.append('{');
+        Iterator<? extends Map.Entry<?, ?>> it = map.entrySet().iterator();
+        for (boolean first = true; it.hasNext() && out.length() <= end; first = false) {
+            if (!first) {
+                out.append(", ");
+            }
+            Map.Entry<?, ?> entry = it.next();
+            if (entry.getKey() == map) {
+                out.append("(this Map)");
+            } else {
+                appendElement(out, entry.getKey(), end);
+            }
+            out.append('=');
+            if (entry.getValue() == map) {
+                out.append("(this Map)");
+            } else {
+                appendElement(out, entry.getValue(), end);
+            }
+        }
+        out.append('}');
+    }
+
+    private static void appendElement(StringBuilder out, @NullableDecl Object element, int end) {
+        // Nested collections and maps are streamed as well, everything else is rendered as by
+        // String.valueOf() to keep the output identical to the unbounded representation.
+        if (element instanceof Collection || element instanceof Map) {
+            appendBounded(out, element, end);
+        } else {
+            appendTruncated(out, String.valueOf(element), end);
+        }
+    }
+
+    /**
+     * Cuts the buffer at the given end index and appends the elision marker if it is longer, returning
+     * the number of marker characters appended.
+     */
+    private static int elide(StringBuilder out, int end) {
+        if (out.length() <= end) {
+            return 0;
+        }
+        out.setLength(end);
+        out.append(ELISION_MARKER);
+        return ELISION_MARKER.length();
+    }
+
     @Override
     public void addParameterImpl(int termStart, int termEnd, Parameter param) {
         getParser().unescape(out, getMessage(), literalStart, termStart);
-        param.accept(this, args);
+        int usedLength = out.length() - messageStart - elidedLength;
+        if (usedLength < maxMessageLength) {
+            int start = out.length();
+            argumentEnd = Log4j2FormatLimits.end(start, Math.min(maxArgumentLength, maxMessageLength - usedLength));
+            param.accept(this, args);
+            if (redactor == null) {
+                elidedLength += elide(out, argumentEnd);
+            } else {
+                redactor.redact(out, messageStart, start);
+                int elided = elide(out, argumentEnd);
+                if (elided > 0) {
+                    // A card number cut by the budget no longer passes the check, mask what is left of it.
+                    redactor.redactCutDigits(out, start, out.length() - elided);
+                }
+                elidedLength += elided;
+            }
+        }
         literalStart = termEnd;
     }
 
     @Override
     public StringBuilder buildImpl() {
         getParser().unescape(out, getMessage(), literalStart, getMessage().length());
+        elide(out, Log4j2FormatLimits.end(messageStart + elidedLength, maxMessageLength));
         return out;
     }
 
     @Override
     public void visit(Object value, FormatChar format, FormatOptions options) {
         if (format.getType().canFormat(value)) {
-            appendFormatted(out, value, format, options);
+            appendFormatted(out, value, format, options, argumentEnd);
         } else {
             appendInvalid(out, value, format.getDefaultFormatString());
         }
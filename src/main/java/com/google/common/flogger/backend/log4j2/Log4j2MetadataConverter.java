@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.backend.Metadata;
+import com.google.common.flogger.backend.MessageUtils;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+
+/**
+ * Renders the value of a single metadata key of a Flogger event, e.g. {@code %fmeta{request_id}}.
+ *
+ * <p>The value is looked up in the log site metadata and then in the scope metadata of the event,
+ * without building the context data of the event. Values of repeated keys are rendered comma
+ * separated. Events which are not {@link Log4j2LogEvent}s are rendered from their context data.
+ */
+@Plugin(name = "FloggerMetadataConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({"fmeta"})
+public final class Log4j2MetadataConverter extends LogEventPatternConverter {
+    private final String label;
+
+    private Log4j2MetadataConverter(String label) {
+        super("FloggerMetadata", "fmeta");
+        this.label = label;
+    }
+
+    /**
+     * Called via reflection by log4j2 when a pattern layout uses {@code %fmeta{key}}.
+     */
+    public static Log4j2MetadataConverter newInstance(String[] options) {
+        if (options == null || options.length == 0 || options[0].trim().isEmpty()) {
+            throw new IllegalArgumentException("%fmeta requires a metadata key, e.g. %fmeta{key}");
+        }
+        return new Log4j2MetadataConverter(options[0].trim());
+    }
+
+    @Override
+    public void format(LogEvent event, StringBuilder toAppendTo) {
+        if (!(event instanceof Log4j2LogEvent)) {
+            Object value = event.getContextData().getValue(label);
+            if (value != null) {
+                toAppendTo.append(MessageUtils.safeToString(value));
+            }
+            return;
+        }
+        Log4j2LogEvent nativeEvent = (Log4j2LogEvent) event;
+        int start = toAppendTo.length();
+        // Log site values take precedence over scope values for single valued keys.
+        if (!appendValues(nativeEvent.getLogData().getMetadata(), start, toAppendTo)) {
+            appendValues(nativeEvent.getScope(), start, toAppendTo);
+        }
+        // The context data of other events was already masked when it was built.
+        Log4j2Redactor redactor = Log4j2Redactor.current();
+        if (redactor != null && toAppendTo.length() > start) {
+            if (redactor.isRedactedKey(label)) {
+                toAppendTo.replace(start, toAppendTo.length(), Log4j2Redactor.MASK);
+            } else {
+                redactor.redact(toAppendTo, start, start);
+            }
+        }
+    }
+
+    // Returns whether a single valued key was found (in which case no further values are needed).
+    private boolean appendValues(Metadata metadata, int start, StringBuilder toAppendTo) {
+        for (int i = 0; i < metadata.size(); i++) {
+            if (!metadata.getKey(i).getLabel().equals(label)) {
+                continue;
+            }
+            if (!metadata.getKey(i).canRepeat()) {
+                toAppendTo.setLength(start);
+                toAppendTo.append(MessageUtils.safeToString(metadata.getValue(i)));
+                return true;
+            }
+            if (toAppendTo.length() > start) {
+                toAppendTo.append(',');
+            }
+            toAppendTo.append(MessageUtils.safeToString(metadata.getValue(i)));
+        }
+        return false;
+    }
+}
@@ -16,18 +16,256 @@
 
 package com.google.common.flogger.backend.log4j2;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.flogger.MetadataKey;
 import com.google.common.flogger.backend.MetadataHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
+import java.beans.PropertyChangeEvent;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Holds the {@link MetadataHandler} used to copy metadata into the context data of log4j2 events.
+ *
+ * <p>By default every metadata key is emitted. Since context data which no appender renders is
+ * wasted work, the set of emitted keys can be restricted by label:
+ *
+ * <ul>
+ *   <li>{@code flogger.log4j2.metadata.allow=count,id} only emits the listed keys.
+ *   <li>{@code flogger.log4j2.metadata.allow=auto} only emits the keys referenced by {@code %X{key}}
+ *       (or {@code %mdc}/{@code %MDC}) in the pattern layouts of the active log4j2 configuration. The
+ *       keys are recomputed whenever log4j2 is reconfigured. Any layout other than a plain pattern
+ *       layout, or a {@code %X} without keys, enables all keys.
+ *   <li>{@code flogger.log4j2.metadata.deny=key1,key2} never emits the listed keys.
+ * </ul>
+ *
+ * <p>Keys which are not emitted are skipped before their value is copied or converted in any way.
+ * Custom {@link MetadataHandler.ValueHandler}s can be registered for individual keys via {@link
+ * #registerValueHandler(MetadataKey, MetadataHandler.ValueHandler)}.
+ */
 public final class Log4j2MetadataHandler {
-    private static final MetadataHandler<Log4j2KeyValueHandler> DEFAULT_HANDLER = MetadataHandler
-            .builder(Log4j2MetadataKeyValueHandlers.getDefaultValueHandler())
-            .setDefaultRepeatedHandler(Log4j2MetadataKeyValueHandlers.getDefaultRepeatedValueHandler())
-            .build();
+    private static final String ALLOW_PROPERTY = "flogger.log4j2.metadata.allow";
+    private static final String DENY_PROPERTY = "flogger.log4j2.metadata.deny";
+    private static final String AUTO = "auto";
+    // Matches %X, %mdc and %MDC conversions with an optional (comma separated) list of keys.
+    private static final Pattern CONTEXT_KEY_CONVERSION =
+            Pattern.compile("%[-.\\d]*(?:X|mdc|MDC)(?![a-zA-Z])(?:\\{([^}]*)})?");
+
+    // Null means that all keys are allowed.
+    @NullableDecl
+    private static Set<String> allowedKeys = parseKeys(System.getProperty(ALLOW_PROPERTY));
+    private static Set<String> deniedKeys = nullToEmpty(parseKeys(System.getProperty(DENY_PROPERTY)));
+    private static final Map<MetadataKey<?>, MetadataHandler.ValueHandler<?, Log4j2KeyValueHandler>>
+            customHandlers = new LinkedHashMap<>();
+    private static boolean layoutAware = false;
+
+    private static volatile MetadataHandler<Log4j2KeyValueHandler> handler = buildHandler();
+
+    static {
+        if (AUTO.equalsIgnoreCase(System.getProperty(ALLOW_PROPERTY))) {
+            useLayoutReferencedKeys((LoggerContext) LogManager.getContext(false));
+        }
+    }
 
     private Log4j2MetadataHandler() {
     }
 
     public static MetadataHandler<Log4j2KeyValueHandler> getDefaultHandler() {
-        return DEFAULT_HANDLER;
+        return handler;
+    }
+
+    /**
+     * Only emits metadata keys with the given labels (or all keys if {@code labels} is null). This
+     * disables the automatic, layout based selection of keys.
+     */
+    public static synchronized void setAllowedKeys(@NullableDecl Collection<String> labels) {
+        layoutAware = false;
+        allowedKeys = labels != null ? ImmutableSet.copyOf(labels) : null;
+        handler = buildHandler();
+    }
+
+    /**
+     * Never emits metadata keys with the given labels.
+     */
+    public static synchronized void setDeniedKeys(Collection<String> labels) {
+        deniedKeys = ImmutableSet.copyOf(labels);
+        handler = buildHandler();
+    }
+
+    /**
+     * Registers a custom value handler for the given metadata key, replacing the default handling of
+     * that key. Allowed and denied keys still apply to keys with a custom handler.
+     */
+    public static synchronized <T> void registerValueHandler(
+            MetadataKey<T> key, MetadataHandler.ValueHandler<? super T, Log4j2KeyValueHandler> valueHandler) {
+        customHandlers.put(key, valueHandler);
+        handler = buildHandler();
+    }
+
+    /**
+     * Only emits the metadata keys referenced by the layouts of the given logger context, and keeps
+     * them up to date whenever the context is reconfigured.
+     */
+    public static synchronized void useLayoutReferencedKeys(LoggerContext context) {
+        if (!layoutAware) {
+            layoutAware = true;
+            context.addPropertyChangeListener(Log4j2MetadataHandler::onContextChange);
+        }
+        updateLayoutReferencedKeys(context.getConfiguration());
+    }
+
+    private static void onContextChange(PropertyChangeEvent event) {
+        if (LoggerContext.PROPERTY_CONFIG.equals(event.getPropertyName())
+                && event.getNewValue() instanceof Configuration) {
+            updateLayoutReferencedKeys((Configuration) event.getNewValue());
+        }
+    }
+
+    private static synchronized void updateLayoutReferencedKeys(Configuration configuration) {
+        if (layoutAware) {
+            allowedKeys = getReferencedKeys(configuration);
+            handler = buildHandler();
+        }
+    }
+
+    /**
+     * Returns the context keys referenced by the layouts of the given configuration, or null if all
+     * keys may be rendered.
+     */
+    // VisibleForTesting
+    @NullableDecl
+    static Set<String> getReferencedKeys(Configuration configuration) {
+        ImmutableSet.Builder<String> keys = ImmutableSet.builder();
+        for (Appender appender : configuration.getAppenders().values()) {
+            Layout<?> layout = appender.getLayout();
+            if (layout == null) {
+                // Wrapping appenders (async, rewrite, ...) have no layout of their own, the appenders they
+                // delegate to are part of the configuration as well.
+                continue;
+            }
+            String pattern = layout instanceof PatternLayout
+                    ? ((PatternLayout) layout).getConversionPattern()
+                    : null;
+            if (pattern == null) {
+                // Structured layouts (and pattern selectors) render the whole context map.
+                return null;
+            }
+            Matcher matcher = CONTEXT_KEY_CONVERSION.matcher(pattern);
+            while (matcher.find()) {
+                if (matcher.group(1) == null || matcher.group(1).trim().isEmpty()) {
+                    return null;
+                }
+                for (String key : matcher.group(1).split(",")) {
+                    keys.add(key.trim());
+                }
+            }
+        }
+        return keys.build();
+    }
+
+    private static MetadataHandler<Log4j2KeyValueHandler> buildHandler() {
+        return buildHandler(allowedKeys, deniedKeys);
+    }
+
+    /**
+     * Returns a handler which only emits the keys with the given labels, of those emitted by the
+     * default handler.
+     */
+    static synchronized MetadataHandler<Log4j2KeyValueHandler> buildSelectingHandler(Set<String> labels) {
+        Set<String> allowed = allowedKeys;
+        return buildHandler(
+                allowed != null ? ImmutableSet.copyOf(Sets.intersection(allowed, labels)) : labels, deniedKeys);
+    }
+
+    private static MetadataHandler<Log4j2KeyValueHandler> buildHandler(
+            @NullableDecl Set<String> allowed, Set<String> denied) {
+        MetadataHandler.Builder<Log4j2KeyValueHandler> builder = MetadataHandler
+                .builder(filtered(Log4j2MetadataKeyValueHandlers.getDefaultValueHandler(), allowed, denied))
+                .setDefaultRepeatedHandler(
+                        filtered(Log4j2MetadataKeyValueHandlers.getDefaultRepeatedValueHandler(), allowed, denied));
+        for (Map.Entry<MetadataKey<?>, MetadataHandler.ValueHandler<?, Log4j2KeyValueHandler>> entry
+                : customHandlers.entrySet()) {
+            addHandler(builder, entry.getKey(), entry.getValue(), allowed, denied);
+        }
+        // The tail buffer and the budget of a scope are backend state, not context.
+        builder.ignoring(Log4j2TailBuffer.KEY);
+        builder.ignoring(Log4j2ScopeBudget.KEY);
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked") // Safe since handlers are registered with matching key types.
+    private static <T> void addHandler(
+            MetadataHandler.Builder<Log4j2KeyValueHandler> builder,
+            MetadataKey<T> key,
+            MetadataHandler.ValueHandler<?, Log4j2KeyValueHandler> valueHandler,
+            @NullableDecl Set<String> allowed,
+            Set<String> denied) {
+        if (isEmitted(key.getLabel(), allowed, denied)) {
+            builder.addHandler(key, (MetadataHandler.ValueHandler<T, Log4j2KeyValueHandler>) valueHandler);
+        } else {
+            builder.ignoring(key);
+        }
+    }
+
+    private static MetadataHandler.ValueHandler<Object, Log4j2KeyValueHandler> filtered(
+            MetadataHandler.ValueHandler<Object, Log4j2KeyValueHandler> valueHandler,
+            @NullableDecl Set<String> allowed,
+            Set<String> denied) {
+        if (allowed == null && denied.isEmpty()) {
+            return valueHandler;
+        }
+        return (key, value, kvh) -> {
+            if (isEmitted(key.getLabel(), allowed, denied)) {
+                valueHandler.handle(key, value, kvh);
+            }
+        };
+    }
+
+    private static MetadataHandler.RepeatedValueHandler<Object, Log4j2KeyValueHandler> filtered(
+            MetadataHandler.RepeatedValueHandler<Object, Log4j2KeyValueHandler> valueHandler,
+            @NullableDecl Set<String> allowed,
+            Set<String> denied) {
+        if (allowed == null && denied.isEmpty()) {
+            return valueHandler;
+        }
+        return (key, values, kvh) -> {
+            if (isEmitted(key.getLabel(), allowed, denied)) {
+                valueHandler.handle(key, values, kvh);
+            }
+        };
+    }
+
+    private static boolean isEmitted(String label, @NullableDecl Set<String> allowed, Set<String> denied) {
+        return (allowed == null || allowed.contains(label)) && !denied.contains(label);
+    }
+
+    @NullableDecl
+    private static Set<String> parseKeys(@NullableDecl String property) {
+        if (property == null || property.trim().isEmpty() || AUTO.equalsIgnoreCase(property.trim())) {
+            return null;
+        }
+        ImmutableSet.Builder<String> keys = ImmutableSet.builder();
+        for (String key : property.split(",")) {
+            if (!key.trim().isEmpty()) {
+                keys.add(key.trim());
+            }
+        }
+        return keys.build();
+    }
+
+    private static Set<String> nullToEmpty(@NullableDecl Set<String> keys) {
+        return keys != null ? keys : ImmutableSet.of();
     }
 }
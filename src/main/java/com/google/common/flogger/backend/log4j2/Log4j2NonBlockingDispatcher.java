@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Dispatches log events on the logging thread, but never parks it behind a slow appender.
+ *
+ * <p>Dispatching is serialized per lane. Log4j2 attaches appenders to logger configurations, and an
+ * additive configuration also writes into the appenders of its parents, so a lane covers an additive
+ * chain: the first non-additive configuration (or the root) and all additive configurations below
+ * it. A slow appender thus only holds up threads logging through configurations which share it. A
+ * thread which cannot acquire the lock of its lane within {@code
+ * flogger.log4j2.dispatch.max_wait_micros} (default 0, i.e. only if it is free) puts its event into
+ * the bounded overflow queue of that lane instead and returns. Whichever thread holds the
+ * lock next writes queued events, oldest first, before and after its own event, so events are written
+ * in the order they were queued. If the queue is full ({@code
+ * flogger.log4j2.dispatch.overflow_capacity}, default 1024), the oldest queued event of the least
+ * severe level below that of the new event is evicted; if there is none the new event is dropped.
+ * Evicted and dropped events are counted as dropped events.
+ *
+ * <p>A single dispatch writes at most the overflow capacity of queued events besides its own, and
+ * queues its own event behind them if that budget runs out, so the time a logging thread spends in
+ * the appenders is bounded even while other threads keep queueing. If the average time to write an
+ * event exceeds {@code flogger.log4j2.dispatch.latency_threshold_micros} (default 0, disabled), the
+ * lock holder queues its own event as well and only writes as many events as fit into the threshold.
+ * Events left in a queue are written by the next dispatch through the same lane, by a background
+ * thread every {@code flogger.log4j2.dispatch.drain_interval_millis} (default 100, 0 disables it) so
+ * that they are not stuck on a lane nobody logs through any more, and at shutdown.
+ */
+final class Log4j2NonBlockingDispatcher implements Log4j2Dispatcher {
+    // The levels with a queue of their own, from most to least severe (FATAL is queued as ERROR).
+    private static final Level[] LEVELS = {Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE};
+
+    private final long maxWaitNanos;
+    private final int capacity;
+    private final long latencyThresholdNanos;
+    private final long drainIntervalNanos;
+    // Keyed by the topmost configuration of the additive chain. Lanes hold no reference to their
+    // configuration (only queued events do), so they can be collected after a reconfiguration.
+    private final LoadingCache<LoggerConfig, Lane> lanes =
+            CacheBuilder.newBuilder().weakKeys().build(CacheLoader.from(config -> new Lane()));
+    private final AtomicLong sequence = new AtomicLong();
+    private final Runnable shutdownHook =
+            Log4j2ShutdownHooks.register("flogger-log4j2-overflow-shutdown", this::drainAtShutdown);
+    // Started with the first queued event.
+    @NullableDecl
+    private volatile ScheduledExecutorService drainer = null;
+
+    // VisibleForTesting
+    Log4j2NonBlockingDispatcher(int capacity, long maxWaitNanos, long latencyThresholdNanos, long drainIntervalNanos) {
+        this.capacity = capacity;
+        this.maxWaitNanos = maxWaitNanos;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.drainIntervalNanos = drainIntervalNanos;
+    }
+
+    static Log4j2NonBlockingDispatcher fromSystemProperties() {
+        return new Log4j2NonBlockingDispatcher(
+                Integer.getInteger("flogger.log4j2.dispatch.overflow_capacity", 1024),
+                TimeUnit.MICROSECONDS.toNanos(Long.getLong("flogger.log4j2.dispatch.max_wait_micros", 0L)),
+                TimeUnit.MICROSECONDS.toNanos(
+                        Long.getLong("flogger.log4j2.dispatch.latency_threshold_micros", 0L)),
+                TimeUnit.MILLISECONDS.toNanos(Long.getLong("flogger.log4j2.dispatch.drain_interval_millis", 100L)));
+    }
+
+    @Override
+    public void dispatch(Logger logger, LogEvent event) {
+        LoggerConfig config = logger.get();
+        lanes.getUnchecked(laneKey(config)).dispatch(config, event);
+    }
+
+    /**
+     * Dispatches the given events under a single acquisition of the lock.
+     */
+    @Override
+    public void dispatchAll(Logger logger, List<LogEvent> events) {
+        LoggerConfig config = logger.get();
+        lanes.getUnchecked(laneKey(config)).dispatchAll(config, events);
+    }
+
+    // Events of an additive configuration also go to the appenders of its parents, so the whole chain
+    // must be serialized by one lock.
+    private static LoggerConfig laneKey(LoggerConfig config) {
+        LoggerConfig key = config;
+        while (key.isAdditive() && key.getParent() != null) {
+            key = key.getParent();
+        }
+        return key;
+    }
+
+    // VisibleForTesting
+    void close() {
+        ScheduledExecutorService currentDrainer = drainer;
+        if (currentDrainer != null) {
+            currentDrainer.shutdownNow();
+        }
+        drainAtShutdown();
+        shutdownHook.run();
+    }
+
+    private synchronized void startDraining() {
+        if (drainer == null) {
+            ScheduledExecutorService newDrainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "flogger-log4j2-overflow-drain");
+                thread.setDaemon(true);
+                return thread;
+            });
+            newDrainer.scheduleWithFixedDelay(
+                    this::drainQueued, drainIntervalNanos, drainIntervalNanos, TimeUnit.NANOSECONDS);
+            drainer = newDrainer;
+        }
+    }
+
+    /**
+     * Writes the events queued on lanes whose lock is free, e.g. an ERROR which overflowed on a lane no
+     * thread has logged through since.
+     */
+    // VisibleForTesting
+    void drainQueued() {
+        for (Lane lane : lanes.asMap().values()) {
+            lane.drainRemaining(capacity);
+        }
+    }
+
+    private void drainAtShutdown() {
+        for (Lane lane : lanes.asMap().values()) {
+            lane.drainAtShutdown();
+        }
+    }
+
+    private static int indexOf(Level level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (level.isMoreSpecificThan(LEVELS[i])) {
+                return i;
+            }
+        }
+        return LEVELS.length - 1;
+    }
+
+    /**
+     * The lock and overflow queue of one additive chain of logger configurations.
+     */
+    private final class Lane {
+        private final ReentrantLock lock = new ReentrantLock();
+        // One lock-free queue per level, the sequence numbers restore the overall order when draining.
+        private final Queue<PendingEvent>[] queues;
+        private final AtomicInteger queued = new AtomicInteger();
+        // Exponentially weighted average of the time to write one event, only updated with the lock held.
+        private volatile long averageNanos;
+
+        @SuppressWarnings("unchecked") // Generic array creation.
+        Lane() {
+            this.queues = new Queue[LEVELS.length];
+            for (int i = 0; i < LEVELS.length; i++) {
+                queues[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        void dispatch(LoggerConfig config, LogEvent event) {
+            if (!tryAcquire()) {
+                enqueue(new PendingEvent(config, event, sequence.getAndIncrement()));
+                // The holder may have released the lock before the event was queued.
+                drainRemaining(capacity);
+                return;
+            }
+            int budget;
+            try {
+                if (isOverThreshold()) {
+                    enqueue(new PendingEvent(config, event, sequence.getAndIncrement()));
+                    budget = drain(thresholdBudget());
+                } else {
+                    budget = drain(capacity);
+                    if (budget > 0) {
+                        write(config, event);
+                    } else {
+                        // Writing it now would overtake the events which are still queued.
+                        enqueue(new PendingEvent(config, event, sequence.getAndIncrement()));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            drainRemaining(budget);
+        }
+
+        void dispatchAll(LoggerConfig config, List<LogEvent> events) {
+            if (!tryAcquire()) {
+                enqueueAll(config, events);
+                drainRemaining(capacity);
+                return;
+            }
+            int budget;
+            try {
+                if (isOverThreshold()) {
+                    enqueueAll(config, events);
+                    budget = drain(thresholdBudget());
+                } else {
+                    budget = drain(capacity);
+                    if (budget > 0) {
+                        // The batch is the caller's own work, it is not limited by the budget.
+                        for (LogEvent event : events) {
+                            write(config, event);
+                        }
+                    } else {
+                        enqueueAll(config, events);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            drainRemaining(budget);
+        }
+
+        private void enqueueAll(LoggerConfig config, List<LogEvent> events) {
+            for (LogEvent event : events) {
+                enqueue(new PendingEvent(config, event, sequence.getAndIncrement()));
+            }
+        }
+
+        private boolean tryAcquire() {
+            if (maxWaitNanos == 0) {
+                return lock.tryLock();
+            }
+            try {
+                return lock.tryLock(maxWaitNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private boolean isOverThreshold() {
+            return latencyThresholdNanos > 0 && averageNanos > latencyThresholdNanos;
+        }
+
+        private int thresholdBudget() {
+            return (int) Math.max(1, Math.min(capacity, latencyThresholdNanos / averageNanos));
+        }
+
+        // Events queued after the last drain of the holder would otherwise wait for the next dispatch.
+        void drainRemaining(int budget) {
+            while (budget > 0 && queued.get() > 0 && lock.tryLock()) {
+                int remaining;
+                try {
+                    remaining = drain(budget);
+                } finally {
+                    lock.unlock();
+                }
+                if (remaining == budget) {
+                    // The event counted as queued hasn't been added yet, its thread drains it.
+                    return;
+                }
+                budget = remaining;
+            }
+        }
+
+        private void enqueue(PendingEvent pending) {
+            int level = indexOf(pending.event.getLevel());
+            if (queued.incrementAndGet() > capacity) {
+                queued.decrementAndGet();
+                if (!evictBelow(level)) {
+                    Log4j2Counters.recordDroppedEvent();
+                    return;
+                }
+                // The evicted event's place is taken by the new one.
+            }
+            queues[level].add(pending);
+            if (drainer == null && drainIntervalNanos > 0) {
+                startDraining();
+            }
+        }
+
+        // Evicts the oldest event of the least severe level below the given one.
+        private boolean evictBelow(int level) {
+            for (int i = LEVELS.length - 1; i > level; i--) {
+                if (queues[i].poll() != null) {
+                    Log4j2Counters.recordDroppedEvent();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Must be called with the lock held, which makes this thread the only consumer of the queues.
+        // Writes at most the given number of events and returns how many more it could have written.
+        private int drain(int budget) {
+            PendingEvent pending;
+            while (budget > 0 && (pending = pollOldest()) != null) {
+                queued.decrementAndGet();
+                budget--;
+                try {
+                    write(pending.config, pending.event);
+                } catch (RuntimeException e) {
+                    // The event belongs to another thread, which has returned already.
+                    StatusLogger.getLogger().error("Unable to dispatch log event", e);
+                }
+            }
+            return budget;
+        }
+
+        private void write(LoggerConfig config, LogEvent event) {
+            if (latencyThresholdNanos == 0) {
+                config.log(event);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                config.log(event);
+            } finally {
+                long average = averageNanos;
+                averageNanos = average + (System.nanoTime() - start - average) / 8;
+            }
+        }
+
+        @NullableDecl
+        private PendingEvent pollOldest() {
+            Queue<PendingEvent> oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (Queue<PendingEvent> queue : queues) {
+                PendingEvent head = queue.peek();
+                if (head != null && head.sequence < oldestSequence) {
+                    oldest = queue;
+                    oldestSequence = head.sequence;
+                }
+            }
+            // Only evictions can remove the head concurrently, in which case the next event is taken.
+            return oldest != null ? oldest.poll() : null;
+        }
+
+        void drainAtShutdown() {
+            try {
+                if (lock.tryLock(5, TimeUnit.SECONDS)) {
+                    try {
+                        drain(Integer.MAX_VALUE);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class PendingEvent {
+        final LoggerConfig config;
+        final LogEvent event;
+        final long sequence;
+
+        PendingEvent(LoggerConfig config, LogEvent event, long sequence) {
+            this.config = config;
+            this.event = event;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.collect.ImmutableSet;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Masks sensitive values in the arguments and metadata of log statements while they are formatted.
+ *
+ * <p>Three kinds of rules are supported:
+ *
+ * <ul>
+ *   <li>Prefixes ({@code flogger.log4j2.redact.prefixes}, comma separated), e.g. {@code password=} or
+ *       {@code ghp_}: the value following a prefix (up to the next whitespace or delimiter) is
+ *       replaced by {@code ****}. Prefixes are ASCII and matched case sensitively.
+ *   <li>Card numbers ({@code flogger.log4j2.redact.card_numbers=true}): runs of 13 to 19 digits,
+ *       optionally grouped by single spaces or dashes, which pass the Luhn check. All but the last
+ *       four digits are masked.
+ *   <li>Metadata keys ({@code flogger.log4j2.redact.keys}, comma separated): the values of these keys
+ *       are replaced by {@code ****} wherever they are emitted.
+ * </ul>
+ *
+ * <p>All prefixes are compiled into a single Aho-Corasick automaton, so each character is examined
+ * once regardless of the number of prefixes. The formatter only scans the text of each argument as
+ * it is appended (plus the few literal characters in front of it, so that {@code "password=%s"} is
+ * matched); literal template text is never rescanned and messages without arguments are not scanned
+ * at all. The redactor can also be set programmatically via {@link #setDefault(Log4j2Redactor)}.
+ */
+public final class Log4j2Redactor {
+    static final String MASK = "****";
+    // Prefixes are restricted to ASCII, which keeps the transition table dense.
+    private static final int ALPHABET = 128;
+    private static final String VALUE_DELIMITERS = ",;&'\"()[]{}<>";
+
+    @NullableDecl
+    private static volatile Log4j2Redactor current = fromSystemProperties();
+
+    // The complete transition table of the automaton, indexed by state * ALPHABET + character.
+    private final int[] next;
+    // Whether a prefix ends in a state (directly or via its failure links).
+    private final boolean[] matches;
+    private final int maxPrefixLength;
+    private final boolean redactCardNumbers;
+    private final Set<String> redactedKeys;
+
+    private Log4j2Redactor(List<String> prefixes, boolean redactCardNumbers, Set<String> redactedKeys) {
+        int maxStates = 1;
+        int maxLength = 0;
+        for (String prefix : prefixes) {
+            maxStates += prefix.length();
+            maxLength = Math.max(maxLength, prefix.length());
+        }
+        int[] next = new int[maxStates * ALPHABET];
+        Arrays.fill(next, -1);
+        boolean[] matches = new boolean[maxStates];
+        int states = 1;
+        for (String prefix : prefixes) {
+            int state = 0;
+            for (int i = 0; i < prefix.length(); i++) {
+                int index = state * ALPHABET + prefix.charAt(i);
+                if (next[index] < 0) {
+                    next[index] = states++;
+                }
+                state = next[index];
+            }
+            matches[state] = true;
+        }
+        // Breadth first, so the failure link of every state is complete before the state is expanded.
+        int[] failure = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < ALPHABET; c++) {
+            if (next[c] < 0) {
+                next[c] = 0;
+            } else {
+                queue[tail++] = next[c];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            matches[state] |= matches[failure[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int index = state * ALPHABET + c;
+                int fallback = next[failure[state] * ALPHABET + c];
+                if (next[index] < 0) {
+                    next[index] = fallback;
+                } else {
+                    failure[next[index]] = fallback;
+                    queue[tail++] = next[index];
+                }
+            }
+        }
+        this.next = Arrays.copyOf(next, states * ALPHABET);
+        this.matches = Arrays.copyOf(matches, states);
+        this.maxPrefixLength = maxLength;
+        this.redactCardNumbers = redactCardNumbers;
+        this.redactedKeys = redactedKeys;
+    }
+
+    @NullableDecl
+    private static Log4j2Redactor fromSystemProperties() {
+        Builder builder = builder();
+        for (String prefix : parseList(System.getProperty("flogger.log4j2.redact.prefixes"))) {
+            builder.redactAfter(prefix);
+        }
+        for (String key : parseList(System.getProperty("flogger.log4j2.redact.keys"))) {
+            builder.redactMetadataKey(key);
+        }
+        if (Boolean.getBoolean("flogger.log4j2.redact.card_numbers")) {
+            builder.redactCardNumbers();
+        }
+        return builder.isEmpty() ? null : builder.build();
+    }
+
+    private static List<String> parseList(@NullableDecl String property) {
+        List<String> values = new ArrayList<>();
+        if (property != null) {
+            for (String value : property.split(",")) {
+                if (!value.trim().isEmpty()) {
+                    values.add(value.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Replaces the redactor used by all loggers, or disables redaction if {@code redactor} is null.
+     */
+    public static void setDefault(@NullableDecl Log4j2Redactor redactor) {
+        current = redactor;
+    }
+
+    /**
+     * Returns the redactor used by all loggers, or null if redaction is disabled.
+     */
+    @NullableDecl
+    static Log4j2Redactor current() {
+        return current;
+    }
+
+    /**
+     * Masks sensitive values from {@code start} to the end of the buffer. Prefixes which end in the
+     * characters between {@code contextStart} and {@code start} are matched as well, but only the
+     * part of their value after {@code start} is masked. Returns whether anything was masked.
+     */
+    boolean redact(StringBuilder out, int contextStart, int start) {
+        boolean redacted = false;
+        if (maxPrefixLength > 0) {
+            redacted = redactPrefixed(out, Math.max(contextStart, start - maxPrefixLength), start);
+        }
+        if (redactCardNumbers) {
+            redacted |= redactCardNumbers(out, start);
+        }
+        return redacted;
+    }
+
+    /**
+     * Returns the value to emit for the given metadata key, masked if necessary.
+     */
+    Object redactValue(String key, Object value) {
+        if (redactedKeys.contains(key)) {
+            return MASK;
+        }
+        if (value instanceof String) {
+            StringBuilder out = new StringBuilder((String) value);
+            if (redact(out, 0, 0)) {
+                return out.toString();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Masks the digits of a digit run (grouped as card numbers may be) which ends at the given cut
+     * point, since a card number which was cut can't be recognized anymore. This masks some numbers
+     * which are not card numbers, but only those which were cut anyway.
+     */
+    void redactCutDigits(StringBuilder out, int start, int cut) {
+        if (!redactCardNumbers) {
+            return;
+        }
+        int i = cut - 1;
+        while (i >= start) {
+            char c = out.charAt(i);
+            if (isDigit(c)) {
+                out.setCharAt(i, '*');
+            } else if (!((c == ' ' || c == '-') && i > start && isDigit(out.charAt(i - 1)))) {
+                break;
+            }
+            i--;
+        }
+    }
+
+    /**
+     * Returns whether any of the prefixes occurs in the given text.
+     */
+    boolean containsPrefix(CharSequence text) {
+        int state = 0;
+        for (int i = 0; i < text.length() && maxPrefixLength > 0; i++) {
+            char c = text.charAt(i);
+            state = c < ALPHABET ? next[state * ALPHABET + c] : 0;
+            if (matches[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isRedactedKey(String key) {
+        return redactedKeys.contains(key);
+    }
+
+    private boolean redactPrefixed(StringBuilder out, int from, int start) {
+        boolean redacted = false;
+        int state = 0;
+        for (int i = from; i < out.length(); i++) {
+            char c = out.charAt(i);
+            // No prefix contains a non ASCII character, so the automaton restarts after one.
+            state = c < ALPHABET ? next[state * ALPHABET + c] : 0;
+            if (!matches[state]) {
+                continue;
+            }
+            int valueEnd = i + 1;
+            while (valueEnd < out.length() && isValueChar(out.charAt(valueEnd))) {
+                valueEnd++;
+            }
+            // Values which end before the argument are literal text of the template.
+            int maskStart = Math.max(i + 1, start);
+            if (valueEnd > maskStart) {
+                out.replace(maskStart, valueEnd, MASK);
+                valueEnd = maskStart + MASK.length();
+                redacted = true;
+            }
+            i = valueEnd - 1;
+            state = 0;
+        }
+        return redacted;
+    }
+
+    private static boolean isValueChar(char c) {
+        return !Character.isWhitespace(c) && VALUE_DELIMITERS.indexOf(c) < 0;
+    }
+
+    private static boolean redactCardNumbers(StringBuilder out, int start) {
+        boolean redacted = false;
+        int i = start;
+        while (i < out.length()) {
+            if (!isDigit(out.charAt(i))) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            int runEnd = i;
+            int digits = 0;
+            while (i < out.length()) {
+                char c = out.charAt(i);
+                if (isDigit(c)) {
+                    digits++;
+                    runEnd = ++i;
+                } else if ((c == ' ' || c == '-')
+                        && isDigit(out.charAt(i - 1))
+                        && i + 1 < out.length()
+                        && isDigit(out.charAt(i + 1))) {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            // Digits which are part of a longer word (e.g. an identifier) are not card numbers.
+            boolean isWord = (runStart > start && Character.isLetter(out.charAt(runStart - 1)))
+                    || (runEnd < out.length() && Character.isLetter(out.charAt(runEnd)));
+            if (digits >= 13 && digits <= 19 && !isWord && passesLuhnCheck(out, runStart, runEnd)) {
+                maskDigits(out, runStart, digits - 4);
+                redacted = true;
+            }
+        }
+        return redacted;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean passesLuhnCheck(CharSequence value, int start, int end) {
+        int sum = 0;
+        boolean doubled = false;
+        for (int i = end - 1; i >= start; i--) {
+            char c = value.charAt(i);
+            if (!isDigit(c)) {
+                continue;
+            }
+            int digit = c - '0';
+            if (doubled) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+            doubled = !doubled;
+        }
+        return sum % 10 == 0;
+    }
+
+    // Masks the given number of digits from the start, keeping the separators.
+    private static void maskDigits(StringBuilder out, int start, int count) {
+        for (int i = start; count > 0; i++) {
+            if (isDigit(out.charAt(i))) {
+                out.setCharAt(i, '*');
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Builder for {@link Log4j2Redactor}, see the class documentation for the kinds of rules.
+     */
+    public static final class Builder {
+        private final List<String> prefixes = new ArrayList<>();
+        private final ImmutableSet.Builder<String> redactedKeys = ImmutableSet.builder();
+        private boolean hasKeys = false;
+        private boolean redactCardNumbers = false;
+
+        private Builder() {
+        }
+
+        /**
+         * Masks the value following the given (ASCII) prefix, e.g. {@code password=}.
+         */
+        public Builder redactAfter(String prefix) {
+            if (prefix.isEmpty()) {
+                throw new IllegalArgumentException("prefix must not be empty");
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (prefix.charAt(i) >= ALPHABET) {
+                    throw new IllegalArgumentException("prefix must be ASCII: " + prefix);
+                }
+            }
+            prefixes.add(prefix);
+            return this;
+        }
+
+        /**
+         * Masks all but the last four digits of card numbers.
+         */
+        public Builder redactCardNumbers() {
+            redactCardNumbers = true;
+            return this;
+        }
+
+        /**
+         * Masks the values of the metadata key with the given label.
+         */
+        public Builder redactMetadataKey(String label) {
+            redactedKeys.add(label);
+            hasKeys = true;
+            return this;
+        }
+
+        boolean isEmpty() {
+            return prefixes.isEmpty() && !hasKeys && !redactCardNumbers;
+        }
+
+        public Log4j2Redactor build() {
+            return new Log4j2Redactor(prefixes, redactCardNumbers, redactedKeys.build());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.MetadataKey;
+import com.google.common.flogger.context.ScopedLoggingContext;
+import com.google.common.flogger.grpc.GrpcContextDataProvider;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A per-scope budget of log events and formatted characters.
+ *
+ * <p>A scope installed via {@link #install(ScopedLoggingContext.Builder)} may write at most {@code
+ * flogger.log4j2.scope.max_events} events (default 10000) with at most {@code
+ * flogger.log4j2.scope.max_chars} formatted message characters (default 10 million). Once the budget
+ * is used up, further statements of the scope are dropped before they are formatted, and a single
+ * "log budget exceeded" warning with the number of suppressed statements is written when the scope
+ * is closed. Counters are updated without locks, so concurrent threads of a scope may overshoot the
+ * budget slightly. Messages which are formatted later (see {@code flogger.log4j2.async_formatting})
+ * only count as events.
+ */
+public final class Log4j2ScopeBudget {
+    // Carries the budget in the scope metadata, never emitted as context data.
+    static final MetadataKey<Log4j2ScopeBudget> KEY = MetadataKey.single("flogger_scope_budget", Log4j2ScopeBudget.class);
+
+    private static final long DEFAULT_MAX_EVENTS = Long.getLong("flogger.log4j2.scope.max_events", 10_000L);
+    private static final long DEFAULT_MAX_CHARS = Long.getLong("flogger.log4j2.scope.max_chars", 10_000_000L);
+
+    // Set once the first budget was installed, so the backend skips the scope lookup until then.
+    private static volatile boolean inUse = false;
+
+    private final long maxEvents;
+    private final long maxChars;
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong chars = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    // The backend of the first suppressed statement, which reports the suppressed statements.
+    private final AtomicReference<Log4j2LoggerBackend> reporter = new AtomicReference<>();
+
+    private Log4j2ScopeBudget(long maxEvents, long maxChars) {
+        this.maxEvents = maxEvents;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Installs the given scope with the default budget.
+     */
+    public static ScopedLoggingContext.LoggingContextCloseable install(ScopedLoggingContext.Builder scope) {
+        return install(scope, DEFAULT_MAX_EVENTS, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * Installs the given scope with the given budget. Suppressed statements are reported when the
+     * returned closeable is closed.
+     */
+    public static ScopedLoggingContext.LoggingContextCloseable install(
+            ScopedLoggingContext.Builder scope, long maxEvents, long maxChars) {
+        if (maxEvents < 0 || maxChars < 0) {
+            throw new IllegalArgumentException("budget must not be negative: " + maxEvents + ", " + maxChars);
+        }
+        Log4j2ScopeBudget budget = new Log4j2ScopeBudget(maxEvents, maxChars);
+        inUse = true;
+        ScopedLoggingContext.LoggingContextCloseable context = scope.withMetadata(KEY, budget).install();
+        return () -> {
+            try {
+                // Reported before the scope is closed, so the report carries the scope metadata.
+                budget.reportSuppressed();
+            } finally {
+                context.close();
+            }
+        };
+    }
+
+    /**
+     * Returns the budget of the current scope, or null.
+     */
+    @NullableDecl
+    static Log4j2ScopeBudget current() {
+        return inUse ? GrpcContextDataProvider.getInstance().getMetadata().findValue(KEY) : null;
+    }
+
+    /**
+     * Returns whether a statement may be written, counting it as suppressed otherwise. This is called
+     * before the statement is formatted.
+     */
+    boolean tryAcquire(Log4j2LoggerBackend backend) {
+        if (events.get() < maxEvents && chars.get() < maxChars) {
+            return true;
+        }
+        if (reporter.get() == null) {
+            reporter.compareAndSet(null, backend);
+        }
+        suppressed.incrementAndGet();
+        Log4j2Counters.recordDroppedEvent();
+        return false;
+    }
+
+    /**
+     * Records a written statement with the given formatted length (-1 if unknown).
+     */
+    void record(int formattedLength) {
+        events.incrementAndGet();
+        if (formattedLength > 0) {
+            chars.addAndGet(formattedLength);
+        }
+    }
+
+    private void reportSuppressed() {
+        long count = suppressed.get();
+        Log4j2LoggerBackend backend = reporter.get();
+        if (count > 0 && backend != null) {
+            backend.logBudgetExceeded("log budget exceeded (max events: " + maxEvents + ", max characters: "
+                    + maxChars + "), " + count + " suppressed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Log4j2ScopeBudget{events=" + events + ", chars=" + chars + ", suppressed=" + suppressed + "}";
+    }
+}
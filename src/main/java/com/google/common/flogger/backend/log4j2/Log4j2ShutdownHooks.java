@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.common.flogger.backend.log4j2;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.util.Cancellable;
+import org.apache.logging.log4j.core.util.ShutdownCallbackRegistry;
+import org.apache.logging.log4j.spi.LoggerContextFactory;
+
+/**
+ * Registers the shutdown work of the backend (flushing queued events) with log4j2's {@link
+ * ShutdownCallbackRegistry}, so that it runs in sequence with log4j2's own shutdown callbacks instead
+ * of racing them on a separate JVM shutdown hook. A JVM hook is only used if log4j2 doesn't manage
+ * shutdown itself (e.g. with {@code log4j.shutdownHookEnabled=false}).
+ */
+final class Log4j2ShutdownHooks {
+    private Log4j2ShutdownHooks() {
+    }
+
+    /**
+     * Registers the given callback and returns an action which unregisters it again. The action must
+     * be kept reachable, log4j2 only holds its callbacks softly.
+     */
+    static Runnable register(String name, Runnable callback) {
+        LoggerContextFactory factory = LogManager.getFactory();
+        if (factory instanceof ShutdownCallbackRegistry) {
+            Cancellable cancellable = ((ShutdownCallbackRegistry) factory).addShutdownCallback(callback);
+            if (cancellable != null) {
+                return cancellable::cancel;
+            }
+        }
+        Thread hook = new Thread(callback, name);
+        Runtime.getRuntime().addShutdownHook(hook);
+        return () -> {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // Already shutting down, the hook runs anyway.
+            }
+        };
+    }
+}
@@ -16,73 +16,107 @@
 
 package com.google.common.flogger.backend.log4j2;
 
+import com.google.common.flogger.LogContext;
 import com.google.common.flogger.LogSite;
 import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.backend.Metadata;
 import com.google.common.flogger.backend.MetadataProcessor;
 import com.google.common.flogger.context.ContextDataProvider;
+import com.google.common.flogger.context.Tags;
 import com.google.common.flogger.grpc.GrpcContextDataProvider;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.impl.ContextDataFactory;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.time.MutableInstant;
 import org.apache.logging.log4j.core.util.Throwables;
+import org.apache.logging.log4j.message.Message;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.MutableThreadContextStack;
 import org.apache.logging.log4j.util.StringMap;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 
+import java.util.ArrayList;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
  * Class that represents a log entry that can be written to log4j2.
  */
 final class Log4j2SimpleLogEvent implements Log4j2MessageFormatter.SimpleLogHandler {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // Scratch instant used to hand the timestamp to the event builder. The builder copies the epoch
+    // second and nano-of-second into the event's own instant, so a single instance per thread can be
+    // reused and no Instant needs to be allocated per log statement. Virtual threads don't use it
+    // (see getInstant()).
+    private static final ThreadLocal<MutableInstant> SCRATCH_INSTANT =
+            ThreadLocal.withInitial(MutableInstant::new);
+    // Whether to let log4j2 format messages with immutable arguments (possibly on a background thread).
+    private static final boolean ASYNC_FORMATTING = Boolean.getBoolean("flogger.log4j2.async_formatting");
+    // Whether to create Log4j2LogEvent instances, which build most of their fields on demand.
+    private static final boolean NATIVE_EVENTS = Boolean.getBoolean("flogger.log4j2.native_events");
+
     // Note: Currently the logger is only used to set the logger name in the log event and that looks
     // like it might always be identical to the fluent logger name, so this field might be redundant.
     private final Logger logger;
     private final LogData logData;
-    // The following fields are set when handleFormattedLogMessage() is called.
+    // The budgets of the message, also applied by %fargs to native events.
+    private final Log4j2FormatLimits limits;
+    // The following fields are set by the constructors (via handleFormattedLogMessage() for errors).
     // Level and message will be set to valid values, but the cause is nullable.
     //
     // Note: The log4j level is only used once elsewhere, so it could easily removed to reduce the
     // size of allocations and just recalculated from LogData.
     private Level level = null;
-    private String message = null;
+    private Message message = null;
     private Throwable thrown = null;
 
-    private Log4j2SimpleLogEvent(Logger logger, LogData logData) {
+    private Log4j2SimpleLogEvent(Logger logger, LogData logData, Log4j2FormatLimits limits) {
         this.logger = logger;
         this.logData = logData;
-        Log4j2LogDataFormatter.format(logData, this);
+        this.limits = limits;
+        // Normal statements don't go through the SimpleLogHandler callback, which is left to the cold
+        // error path, so that this stays a monomorphic call chain into the formatter.
+        this.level = Log4j2LoggerBackend.toLog4jLevel(logData.getLevel());
+        this.message = ASYNC_FORMATTING && Log4j2TemplateMessage.canDefer(logData)
+                ? Log4j2TemplateMessage.create(logData, limits)
+                : new SimpleMessage(Log4j2MessageFormatter.formatDefault(logData, limits));
+        this.thrown = logData.getMetadata().findValue(LogContext.Key.LOG_CAUSE);
     }
 
-    private Log4j2SimpleLogEvent(Logger logger, LogData badLogData, RuntimeException error) {
+    private Log4j2SimpleLogEvent(
+            Logger logger, LogData badLogData, RuntimeException error, long suppressedErrors) {
         this.logger = logger;
         this.logData = badLogData;
-        Log4j2LogDataFormatter.formatBadLogData(error, badLogData, this);
+        // Errors are rare, resolving the limits here saves passing them for every statement.
+        this.limits = Log4j2FormatLimits.resolve(logger.getName());
+        Log4j2LogDataFormatter.formatBadLogData(error, badLogData, suppressedErrors, this);
     }
 
     /**
      * Creates a {@link Log4j2SimpleLogEvent} for a normal log statement from the given data.
      */
-    static Log4j2SimpleLogEvent create(Logger logger, LogData data) {
-        return new Log4j2SimpleLogEvent(logger, data);
+    static Log4j2SimpleLogEvent create(Logger logger, LogData data, Log4j2FormatLimits limits) {
+        return new Log4j2SimpleLogEvent(logger, data, limits);
     }
 
     /**
-     * Creates a {@link Log4j2SimpleLogEvent} in the case of an error during logging.
+     * Creates a {@link Log4j2SimpleLogEvent} in the case of an error during logging, reporting the
+     * number of errors at the same log site which were suppressed before.
      */
-    static Log4j2SimpleLogEvent error(Logger logger, RuntimeException error, LogData data) {
-        return new Log4j2SimpleLogEvent(logger, data, error);
+    static Log4j2SimpleLogEvent error(
+            Logger logger, RuntimeException error, LogData data, long suppressedErrors) {
+        return new Log4j2SimpleLogEvent(logger, data, error, suppressedErrors);
     }
 
     @Override
     public void handleFormattedLogMessage(
             java.util.logging.Level level, String message, Throwable thrown) {
         this.level = Log4j2LoggerBackend.toLog4jLevel(level);
-        this.message = message;
+        this.message = new SimpleMessage(message);
         this.thrown = thrown;
     }
 
@@ -90,7 +124,21 @@ final class Log4j2SimpleLogEvent implements Log4j2MessageFormatter.SimpleLogHand
         return level;
     }
 
+    /**
+     * Returns the length of the formatted message, or -1 if formatting was deferred.
+     */
+    int getFormattedLength() {
+        return message instanceof SimpleMessage ? message.getFormattedMessage().length() : -1;
+    }
+
     LogEvent asLoggingEvent() {
+        return asLoggingEvent(Log4j2ContextCapture.FULL);
+    }
+
+    /**
+     * Returns the log4j2 event, capturing only the context selected by the given capture.
+     */
+    LogEvent asLoggingEvent(Log4j2ContextCapture capture) {
         // We do not support 'MDC.getContext()' and 'NDC.getStack()' and we do not make any attempt to merge Log4j2
         // context data with Flogger's context data. Instead, users should use the ScopedLoggingContext (Grpc).
         //
@@ -111,7 +159,48 @@ final class Log4j2SimpleLogEvent implements Log4j2MessageFormatter.SimpleLogHand
         // By using '%X{key}' in the ConversionPattern of an appender the metadata can be included in the
         // logs. By using '%x' in the ConversionPattern of an appender the tags can be included in the logs.
         ContextDataProvider contextDataProvider = GrpcContextDataProvider.getInstance();
+        // Look up the current thread once, it is used for the name, the id and the instant below.
+        Thread currentThread = Thread.currentThread();
+        if (NATIVE_EVENTS) {
+            return asNativeEvent(contextDataProvider, currentThread, capture);
+        }
+
+        Tags tags = contextDataProvider.getTags();
+        return buildEvent(
+                capture,
+                contextDataProvider.getMetadata(),
+                Log4j2TagMarkers.forTags(tags),
+                currentThread,
+                capture.capturesThread() ? currentThread.getName() : "",
+                capture.capturesThread()
+                        ? createContextStack(tags, ThreadContext.getDepth() == 0 ? null : ThreadContext.cloneStack())
+                        : ThreadContext.EMPTY_STACK);
+    }
+
+    /**
+     * Returns the log4j2 event for a statement of the given batch, which shares the context captured
+     * by the batch.
+     */
+    LogEvent asBatchEvent(Batch batch, Log4j2ContextCapture capture) {
+        if (NATIVE_EVENTS) {
+            return asNativeEvent(batch.contextDataProvider, batch.currentThread, capture);
+        }
+        return buildEvent(
+                capture,
+                batch.scope,
+                batch.marker,
+                batch.currentThread,
+                capture.capturesThread() ? batch.threadName : "",
+                capture.capturesThread() ? batch.getContextStack() : ThreadContext.EMPTY_STACK);
+    }
 
+    private LogEvent buildEvent(
+            Log4j2ContextCapture capture,
+            Metadata scope,
+            @NullableDecl Marker marker,
+            Thread currentThread,
+            String threadName,
+            ThreadContext.ContextStack contextStack) {
         // The fully qualified class name of the logger instance is normally used to compute the log
         // location (file, class, method, line number) from the stacktrace. Since we already have the
         // log location in hand we don't need this computation. By passing in null as fully qualified
@@ -121,36 +210,131 @@ final class Log4j2SimpleLogEvent implements Log4j2MessageFormatter.SimpleLogHand
                 .setLoggerName(logger.toString())
                 .setLoggerFqcn(null)
                 .setLevel(level)
-                .setMessage(new SimpleMessage(message))
-                .setThreadName(Thread.currentThread().getName())
-                // Don't use Duration here as (a) it allocates and (b) we can't allow error on overflow.
-                .setTimeMillis(TimeUnit.NANOSECONDS.toMillis(logData.getTimestampNanos()))
+                .setMessage(message)
+                .setThreadName(threadName)
+                .setThreadId(currentThread.getId())
+                .setInstant(getInstant(currentThread))
                 .setThrown(thrown != null ? Throwables.getRootCause(thrown) : null)
                 .setIncludeLocation(true)
                 .setSource(getLocationInfo())
-                .setContextData(createContextMap(contextDataProvider))
-                .setContextStack(createContextStack(contextDataProvider))
+                .setMarker(marker)
+                .setContextData(capture.createContextMap(scope, logData.getMetadata()))
+                .setContextStack(contextStack)
                 .build();
     }
 
-    private StringMap createContextMap(ContextDataProvider contextDataProvider) {
-        StringMap contextData = ContextDataFactory.createContextData(logData.getMetadata().size());
+    /**
+     * Returns an event which wraps the log data and the scope of the given provider, building the
+     * remaining log4j2 fields only on demand (see {@link Log4j2LogEvent}), as far as the given capture
+     * selects them.
+     */
+    // VisibleForTesting
+    Log4j2LogEvent asNativeEvent(
+            ContextDataProvider contextDataProvider, Thread currentThread, Log4j2ContextCapture capture) {
+        return new Log4j2LogEvent(
+                logger.toString(),
+                level,
+                message,
+                thrown != null ? Throwables.getRootCause(thrown) : null,
+                logData,
+                contextDataProvider.getMetadata(),
+                contextDataProvider.getTags(),
+                capture,
+                limits,
+                currentThread);
+    }
+
+    private MutableInstant getInstant(Thread currentThread) {
+        // Don't use Duration or java.time.Instant here as (a) they allocate and (b) we can't allow error
+        // on overflow. Floor division keeps the nano-of-second positive for timestamps before the epoch.
+        long timestampNanos = logData.getTimestampNanos();
+        // A thread local entry per virtual thread would cost more than the small instant it caches, so
+        // virtual threads get a fresh (and quickly collected) instance instead.
+        MutableInstant instant = Log4j2Threads.isVirtual(currentThread)
+                ? new MutableInstant()
+                : SCRATCH_INSTANT.get();
+        instant.initFromEpochSecond(
+                Math.floorDiv(timestampNanos, NANOS_PER_SECOND),
+                (int) Math.floorMod(timestampNanos, NANOS_PER_SECOND));
+        return instant;
+    }
+
+    /**
+     * Returns the context data for the given scope and log site metadata. Scope-only metadata is
+     * converted once per scope and shared between events.
+     */
+    static StringMap createContextMap(Metadata scope, Metadata logSiteMetadata) {
+        if (logSiteMetadata.size() == 0) {
+            return Log4j2ContextDataInjector.getScopeContextData(scope);
+        }
+        StringMap contextData = ContextDataFactory.createContextData(logSiteMetadata.size());
         MetadataProcessor
-                .forScopeAndLogSite(contextDataProvider.getMetadata(), logData.getMetadata())
+                .forScopeAndLogSite(scope, logSiteMetadata)
                 .process(Log4j2MetadataHandler.getDefaultHandler(), new Log4j2KeyValueHandler(contextData));
 
         contextData.freeze();
         return contextData;
     }
 
-    private ThreadContext.ContextStack createContextStack(ContextDataProvider contextDataProvider) {
-        ThreadContext.ContextStack contextStack = ThreadContext.cloneStack();
-        contextStack.addAll(contextDataProvider.getTags().asMap().entrySet().stream()
+    /**
+     * Returns the context stack for the given tags, appended to the given mutable copy of the log4j2
+     * thread context stack (which is null if the thread context stack is empty). The thread context
+     * itself is never read, so this may be called on any thread.
+     */
+    static ThreadContext.ContextStack createContextStack(
+            Tags tags, @NullableDecl ThreadContext.ContextStack threadContextStack) {
+        // Cloning the (usually empty) thread context stack allocates for every event, which adds up with
+        // large numbers of virtual threads. The immutable empty stack can be shared instead.
+        if (tags.isEmpty() && threadContextStack == null) {
+            return ThreadContext.EMPTY_STACK;
+        }
+        ThreadContext.ContextStack contextStack = threadContextStack != null
+                ? threadContextStack
+                : new MutableThreadContextStack(new ArrayList<>());
+        contextStack.addAll(tags.asMap().entrySet().stream()
                 .map(Map.Entry::toString)
                 .collect(Collectors.toSet()));
         return contextStack;
     }
 
+    /**
+     * The context of a batch of log statements, captured once for all of them. Events must be created
+     * on the thread which created the batch.
+     */
+    static final class Batch {
+        private final ContextDataProvider contextDataProvider;
+        private final Metadata scope;
+        private final Tags tags;
+        @NullableDecl
+        private final Marker marker;
+        private final Thread currentThread;
+        private final String threadName;
+        // Built when the first event needs it and then shared (frozen, as appenders could modify it).
+        @NullableDecl
+        private ThreadContext.ContextStack contextStack = null;
+
+        Batch(ContextDataProvider contextDataProvider, Thread currentThread) {
+            this.contextDataProvider = contextDataProvider;
+            this.scope = contextDataProvider.getMetadata();
+            this.tags = contextDataProvider.getTags();
+            this.marker = Log4j2TagMarkers.forTags(tags);
+            this.currentThread = currentThread;
+            this.threadName = currentThread.getName();
+        }
+
+        private ThreadContext.ContextStack getContextStack() {
+            if (contextStack == null) {
+                ThreadContext.ContextStack stack =
+                        createContextStack(tags, ThreadContext.getDepth() == 0 ? null : ThreadContext.cloneStack());
+                if (stack instanceof MutableThreadContextStack) {
+                    ((MutableThreadContextStack) stack).freeze();
+                }
+                contextStack = stack;
+            }
+            return contextStack;
+        }
+    }
+
     private StackTraceElement getLocationInfo() {
         LogSite logSite = logData.getLogSite();
         return new StackTraceElement(
@@ -164,7 +348,7 @@ final class Log4j2SimpleLogEvent implements Log4j2MessageFormatter.SimpleLogHand
     public String toString() {
         // Note that this toString() method is _not_ safe against exceptions thrown by user toString().
         StringBuilder out = new StringBuilder();
-        out.append(getClass().getSimpleName()).append(" {\n  message: ").append(message).append('\n');
+        out.append(getClass().getSimpleName()).append(" {\n  message: ").append(message.getFormattedMessage()).append('\n');
         Log4j2LogDataFormatter.appendLogData(logData, out);
         out.append("\n}");
         return out.toString();
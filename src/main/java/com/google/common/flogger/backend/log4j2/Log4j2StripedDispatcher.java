@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dispatches log events from a single writer thread, so that logging threads do not contend on the
+ * locks of the appenders.
+ *
+ * <p>Events are queued in one of several bounded stripes (at least one per core), chosen by the id of
+ * the logging thread. Since a thread always uses the same stripe and stripes are drained in FIFO
+ * order, the order of events logged by one thread is preserved. The writer drains up to {@code
+ * flogger.log4j2.dispatch.batch_size} events per stripe at a time (default 256), either as soon as a
+ * stripe holds that many events or after {@code flogger.log4j2.dispatch.flush_millis} (default 10).
+ * The last event of each batch is marked as end of batch, so appenders which don't flush
+ * immediately flush once per batch. If a stripe is full ({@code flogger.log4j2.dispatch.capacity},
+ * default 8192) the logging thread blocks until there is space.
+ */
+final class Log4j2StripedDispatcher implements Log4j2Dispatcher {
+    private final ArrayBlockingQueue<PendingEvent>[] stripes;
+    // The number of events per stripe, kept separately since the size of a queue takes its lock.
+    private final AtomicInteger[] stripeSizes;
+    // Held while draining a stripe, so that the events of a stripe are written in order even when a
+    // logging thread drains it after shutdown while the writer is still busy.
+    private final Object[] drainLocks;
+    private final int mask;
+    private final int batchSize;
+    private final long flushNanos;
+    private final Thread writer;
+    // Unregisters the shutdown hook, keeps it reachable as well.
+    private final Runnable shutdownHook;
+    private volatile boolean running = true;
+
+    // VisibleForTesting
+    @SuppressWarnings("unchecked") // Generic array creation.
+    Log4j2StripedDispatcher(int minStripes, int capacity, int batchSize, long flushNanos) {
+        int stripeCount = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        this.stripes = new ArrayBlockingQueue[stripeCount];
+        this.stripeSizes = new AtomicInteger[stripeCount];
+        this.drainLocks = new Object[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ArrayBlockingQueue<>(capacity);
+            stripeSizes[i] = new AtomicInteger();
+            drainLocks[i] = new Object();
+        }
+        this.mask = stripeCount - 1;
+        this.batchSize = batchSize;
+        this.flushNanos = flushNanos;
+        this.writer = new Thread(this::drainLoop, "flogger-log4j2-dispatcher");
+        writer.setDaemon(true);
+        writer.start();
+        this.shutdownHook = Log4j2ShutdownHooks.register("flogger-log4j2-dispatcher-shutdown", this::shutdown);
+    }
+
+    static Log4j2StripedDispatcher fromSystemProperties() {
+        return new Log4j2StripedDispatcher(
+                Runtime.getRuntime().availableProcessors(),
+                Integer.getInteger("flogger.log4j2.dispatch.capacity", 8192),
+                Integer.getInteger("flogger.log4j2.dispatch.batch_size", 256),
+                TimeUnit.MILLISECONDS.toNanos(Long.getLong("flogger.log4j2.dispatch.flush_millis", 10L)));
+    }
+
+    @Override
+    public void dispatch(Logger logger, LogEvent event) {
+        if (!running) {
+            // The writer is gone (or going), don't leave events behind in the stripes.
+            logger.get().log(event);
+            return;
+        }
+        int index = (int) Thread.currentThread().getId() & mask;
+        ArrayBlockingQueue<PendingEvent> stripe = stripes[index];
+        PendingEvent pending = new PendingEvent(logger, event);
+        if (!stripe.offer(pending)) {
+            LockSupport.unpark(writer);
+            try {
+                stripe.put(pending);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.get().log(event);
+                return;
+            }
+        }
+        int size = stripeSizes[index].incrementAndGet();
+        if (!running) {
+            // The writer may have finished its final drain before the event was queued, and nobody else
+            // would write it. Otherwise the final drain starts after this thread saw the writer running,
+            // and writes the event.
+            List<PendingEvent> batch = new ArrayList<>(batchSize);
+            while (drainStripe(index, batch)) {
+                // Drain until the stripe is empty.
+            }
+            return;
+        }
+        if (size >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void drainLoop() {
+        List<PendingEvent> batch = new ArrayList<>(batchSize);
+        while (running) {
+            if (!drainStripes(batch)) {
+                LockSupport.parkNanos(this, flushNanos);
+            }
+        }
+        // The final drain must only start once running was seen false, see dispatch().
+        while (drainStripes(batch)) {
+            // Drain until all stripes are empty.
+        }
+    }
+
+    // Returns whether any events were written.
+    private boolean drainStripes(List<PendingEvent> batch) {
+        boolean drained = false;
+        for (int i = 0; i < stripes.length; i++) {
+            drained |= drainStripe(i, batch);
+        }
+        return drained;
+    }
+
+    // Writes one batch from the given stripe and returns whether there was any event.
+    private boolean drainStripe(int index, List<PendingEvent> batch) {
+        synchronized (drainLocks[index]) {
+            int count = stripes[index].drainTo(batch, batchSize);
+            if (count == 0) {
+                return false;
+            }
+            stripeSizes[index].addAndGet(-count);
+            try {
+                dispatchBatch(batch);
+            } finally {
+                batch.clear();
+            }
+            return true;
+        }
+    }
+
+    private static void dispatchBatch(List<PendingEvent> batch) {
+        batch.get(batch.size() - 1).event.setEndOfBatch(true);
+        for (PendingEvent pending : batch) {
+            try {
+                pending.logger.get().log(pending.event);
+            } catch (RuntimeException e) {
+                // Appenders normally handle their own errors, but the writer thread must survive anyway.
+                StatusLogger.getLogger().error("Unable to dispatch log event", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the queued events, stops the writer thread and unregisters the shutdown hook.
+     */
+    // VisibleForTesting
+    void close() {
+        shutdown();
+        shutdownHook.run();
+    }
+
+    private void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class PendingEvent {
+        final Logger logger;
+        final LogEvent event;
+
+        PendingEvent(Logger logger, LogEvent event) {
+            this.logger = logger;
+            this.event = event;
+        }
+    }
+}
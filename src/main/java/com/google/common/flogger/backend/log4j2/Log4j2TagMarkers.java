@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.flogger.context.Tags;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts Flogger tags into log4j2 markers, so that marker based filters and routing can act on
+ * tags.
+ *
+ * <p>The marker of a set of tags has one parent per tag: {@code name} for tags without a value and
+ * {@code name=value} (with the parent {@code name}) for tags with values. A {@code MarkerFilter} for
+ * {@code name} therefore matches all values of a tag. Markers are built once per tags instance (the
+ * tags of a scope are shared by all of its log statements) and are not registered with the {@link
+ * MarkerManager}, so high cardinality tag values don't accumulate in the global registry.
+ */
+final class Log4j2TagMarkers {
+    // Keys are compared by identity, which is what we want for the (immutable) tags of a scope.
+    private static final Cache<Tags, Marker> MARKERS = CacheBuilder.newBuilder().weakKeys().maximumSize(1024).build();
+
+    private Log4j2TagMarkers() {
+    }
+
+    /**
+     * Returns the marker for the given tags, or null if there are no tags.
+     */
+    @NullableDecl
+    static Marker forTags(Tags tags) {
+        if (tags.isEmpty()) {
+            return null;
+        }
+        Marker marker = MARKERS.getIfPresent(tags);
+        if (marker == null) {
+            marker = createMarker(tags);
+            MARKERS.put(tags, marker);
+        }
+        return marker;
+    }
+
+    private static Marker createMarker(Tags tags) {
+        List<Marker> parents = new ArrayList<>();
+        for (Map.Entry<String, ? extends Set<Object>> tag : tags.asMap().entrySet()) {
+            Marker nameMarker = new MarkerManager.Log4jMarker(tag.getKey());
+            if (tag.getValue().isEmpty()) {
+                parents.add(nameMarker);
+            }
+            for (Object value : tag.getValue()) {
+                parents.add(new MarkerManager.Log4jMarker(tag.getKey() + "=" + value).setParents(nameMarker));
+            }
+        }
+        return new MarkerManager.Log4jMarker(tags.toString()).setParents(parents.toArray(new Marker[0]));
+    }
+}
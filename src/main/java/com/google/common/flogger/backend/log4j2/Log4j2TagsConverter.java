@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.context.Tags;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+
+/**
+ * Renders the tags of the logging scope of a Flogger event. Use {@code %ftags} in a pattern layout.
+ *
+ * <p>Events which are not {@link Log4j2LogEvent}s are rendered from their context stack, to which
+ * the tags are added by the backend.
+ */
+@Plugin(name = "FloggerTagsConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({"ftags"})
+public final class Log4j2TagsConverter extends LogEventPatternConverter {
+    private static final Log4j2TagsConverter INSTANCE = new Log4j2TagsConverter();
+
+    private Log4j2TagsConverter() {
+        super("FloggerTags", "ftags");
+    }
+
+    /**
+     * Called via reflection by log4j2 when a pattern layout uses {@code %ftags}.
+     */
+    public static Log4j2TagsConverter newInstance(String[] options) {
+        return INSTANCE;
+    }
+
+    @Override
+    public void format(LogEvent event, StringBuilder toAppendTo) {
+        if (event instanceof Log4j2LogEvent) {
+            Tags tags = ((Log4j2LogEvent) event).getTags();
+            if (!tags.isEmpty()) {
+                toAppendTo.append(tags);
+            }
+            return;
+        }
+        if (event.getContextStack() != null && event.getContextStack().getDepth() > 0) {
+            toAppendTo.append(event.getContextStack().asList());
+        }
+    }
+}
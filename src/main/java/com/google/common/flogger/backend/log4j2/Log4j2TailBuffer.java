@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.MetadataKey;
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.context.ScopedLoggingContext;
+import com.google.common.flogger.grpc.GrpcContextDataProvider;
+import org.apache.logging.log4j.Level;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A per-scope buffer for tail sampling of verbose log statements.
+ *
+ * <p>Log statements at or below the buffered level (default {@code flogger.log4j2.tail.level}, or
+ * DEBUG) which are logged inside a scope with a buffer are kept, unformatted, instead of being
+ * written, even if the logger is not enabled for their level. If an ERROR is logged in the scope, or
+ * the scope is marked as failed via {@link #markCurrentScopeFailed()}, the buffered statements are
+ * written in order and later ones are written directly. Otherwise the buffer is discarded when the
+ * scope is closed. The buffer holds at most {@code flogger.log4j2.tail.capacity} statements (default
+ * 1000), dropping the oldest ones.
+ *
+ * <pre>{@code
+ * try (LoggingContextCloseable ctx = Log4j2TailBuffer.install(
+ *     ScopedLoggingContext.getInstance().newContext().withMetadata(REQUEST_ID, id))) {
+ *   ...
+ * }
+ * }</pre>
+ *
+ * <p>Arguments of buffered statements are kept by reference, so they should not be modified later.
+ */
+public final class Log4j2TailBuffer {
+    // Carries the buffer in the scope metadata, never emitted as context data.
+    static final MetadataKey<Log4j2TailBuffer> KEY = MetadataKey.single("flogger_tail_buffer", Log4j2TailBuffer.class);
+
+    private static final Level DEFAULT_LEVEL =
+            Level.toLevel(System.getProperty("flogger.log4j2.tail.level"), Level.DEBUG);
+    private static final int DEFAULT_CAPACITY = Integer.getInteger("flogger.log4j2.tail.capacity", 1000);
+
+    // Set once the first buffer was installed, so the backend skips the scope lookup until then.
+    private static volatile boolean inUse = false;
+
+    private final Level bufferedLevel;
+    private final int capacity;
+    private final ArrayDeque<BufferedStatement> statements = new ArrayDeque<>();
+    private boolean failed = false;
+    private boolean closed = false;
+
+    private Log4j2TailBuffer(Level bufferedLevel, int capacity) {
+        this.bufferedLevel = bufferedLevel;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Installs the given scope with a tail buffer for the default level.
+     */
+    public static ScopedLoggingContext.LoggingContextCloseable install(ScopedLoggingContext.Builder scope) {
+        return install(scope, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Installs the given scope with a tail buffer for statements at or below the given level. The
+     * buffer is discarded (unless the scope failed) when the returned closeable is closed.
+     */
+    public static ScopedLoggingContext.LoggingContextCloseable install(
+            ScopedLoggingContext.Builder scope, Level bufferedLevel) {
+        Log4j2TailBuffer buffer = new Log4j2TailBuffer(bufferedLevel, DEFAULT_CAPACITY);
+        inUse = true;
+        ScopedLoggingContext.LoggingContextCloseable context = scope.withMetadata(KEY, buffer).install();
+        return () -> {
+            try {
+                buffer.close();
+            } finally {
+                context.close();
+            }
+        };
+    }
+
+    /**
+     * Marks the innermost scope with a tail buffer as failed and writes its buffered statements. Does
+     * nothing outside such a scope.
+     */
+    public static void markCurrentScopeFailed() {
+        Log4j2TailBuffer buffer = current();
+        if (buffer != null) {
+            buffer.fail();
+        }
+    }
+
+    /**
+     * Returns the buffer of the current scope, or null.
+     */
+    @NullableDecl
+    static Log4j2TailBuffer current() {
+        return inUse ? GrpcContextDataProvider.getInstance().getMetadata().findValue(KEY) : null;
+    }
+
+    /**
+     * Returns whether statements at the given level are buffered.
+     */
+    boolean isBuffered(Level level) {
+        return level.isLessSpecificThan(bufferedLevel);
+    }
+
+    /**
+     * Handles a log statement of the current scope and returns whether it was handled by the buffer.
+     * An error flushes the buffer, but is not handled by it.
+     */
+    boolean handle(Log4j2LoggerBackend backend, LogData logData, Level level) {
+        if (isBuffered(level)) {
+            synchronized (this) {
+                if (!failed) {
+                    // Statements of a closed (but leaked) scope are discarded like the buffer itself.
+                    if (!closed) {
+                        if (statements.size() == capacity) {
+                            statements.removeFirst();
+                            Log4j2Counters.recordDroppedEvent();
+                        }
+                        statements.addLast(new BufferedStatement(backend, logData));
+                    }
+                    return true;
+                }
+            }
+            // The scope failed already, so the statement is written directly.
+            backend.logBuffered(logData);
+            return true;
+        }
+        if (level.isMoreSpecificThan(Level.ERROR)) {
+            fail();
+        }
+        return false;
+    }
+
+    private void fail() {
+        List<BufferedStatement> flushed;
+        synchronized (this) {
+            failed = true;
+            flushed = new ArrayList<>(statements);
+            statements.clear();
+        }
+        for (BufferedStatement statement : flushed) {
+            statement.backend.logBuffered(statement.logData);
+        }
+    }
+
+    private synchronized void close() {
+        closed = true;
+        statements.clear();
+    }
+
+    private static final class BufferedStatement {
+        final Log4j2LoggerBackend backend;
+        final LogData logData;
+
+        BufferedStatement(Log4j2LoggerBackend backend, LogData logData) {
+            this.backend = backend;
+            this.logData = logData;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Log4j2TailBuffer{level=" + bufferedLevel + "}";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.backend.LogData;
+import com.google.common.flogger.backend.TemplateContext;
+import com.google.common.flogger.parameter.Parameter;
+import com.google.common.flogger.parser.MessageBuilder;
+import org.apache.logging.log4j.message.AsynchronouslyFormattable;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * A log4j2 message which carries the message template and arguments of a log statement and only
+ * formats them when the message is rendered.
+ *
+ * <p>The message is marked as {@link AsynchronouslyFormattable}, so async loggers and appenders
+ * format it on their background thread instead of the logging thread. This is only safe if the
+ * arguments cannot change in the meantime, so the message is only used if all arguments are of
+ * well known immutable types (see {@link #canDefer(LogData)}); boxed primitives and strings are kept
+ * by reference without any further copying. Log statements with any other argument are formatted
+ * eagerly, as before. Enable with {@code flogger.log4j2.async_formatting=true}.
+ *
+ * <p>The template is parsed once on the logging thread before formatting is deferred, so that a
+ * broken template is reported through the backend's error handling (counters, circuit breaker,
+ * redaction) like any other logging error. Only rendering is deferred.
+ */
+@AsynchronouslyFormattable
+final class Log4j2TemplateMessage implements Message, StringBuilderFormattable {
+    private static final long serialVersionUID = 1L;
+
+    private final TemplateContext context;
+    // A copy of the argument array, the arguments themselves are immutable.
+    private final Object[] arguments;
+    private final Log4j2FormatLimits limits;
+    // Set once the message was formatted via getFormattedMessage().
+    @NullableDecl
+    private String formattedMessage = null;
+
+    private Log4j2TemplateMessage(TemplateContext context, Object[] arguments, Log4j2FormatLimits limits) {
+        this.context = context;
+        this.arguments = arguments;
+        this.limits = limits;
+    }
+
+    /**
+     * Returns whether formatting of the given log statement can safely be deferred.
+     */
+    static boolean canDefer(LogData logData) {
+        if (logData.getTemplateContext() == null) {
+            return false;
+        }
+        for (Object argument : logData.getArguments()) {
+            if (!isImmutable(argument)) {
+                return false;
+            }
+        }
+        return isValid(logData.getTemplateContext());
+    }
+
+    // Parse errors of a deferred message could only be rendered in place, wherever it is formatted.
+    private static boolean isValid(TemplateContext context) {
+        try {
+            new TemplateValidator(context).build();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean isImmutable(@NullableDecl Object argument) {
+        return argument == null
+                || argument instanceof String
+                || argument instanceof Integer
+                || argument instanceof Long
+                || argument instanceof Boolean
+                || argument instanceof Double
+                || argument instanceof Float
+                || argument instanceof Character
+                || argument instanceof Short
+                || argument instanceof Byte
+                || argument instanceof Enum
+                || argument.getClass() == BigInteger.class
+                || argument.getClass() == BigDecimal.class;
+    }
+
+    /**
+     * Creates a message for the given log statement, which must satisfy {@link #canDefer(LogData)}.
+     */
+    static Log4j2TemplateMessage create(LogData logData, Log4j2FormatLimits limits) {
+        return new Log4j2TemplateMessage(logData.getTemplateContext(), logData.getArguments().clone(), limits);
+    }
+
+    @Override
+    public String getFormattedMessage() {
+        String message = formattedMessage;
+        if (message == null) {
+            StringBuilder out = new StringBuilder();
+            formatTo(out);
+            message = out.toString();
+            formattedMessage = message;
+        }
+        return message;
+    }
+
+    @Override
+    public void formatTo(StringBuilder buffer) {
+        if (formattedMessage != null) {
+            buffer.append(formattedMessage);
+            return;
+        }
+        int start = buffer.length();
+        try {
+            Log4j2MessageFormatter.formatArguments(context, arguments, limits, buffer);
+        } catch (RuntimeException e) {
+            // Templates are validated before formatting is deferred, so this is unexpected. It may run on
+            // any thread, so count the error and render it (redacted) in place of the message.
+            Log4j2Counters.recordError();
+            buffer.setLength(start);
+            buffer.append("LOGGING ERROR: ").append(e.getMessage())
+                    .append("\n  original message: ").append(context.getMessage());
+            Log4j2LogDataFormatter.appendArguments(context.getMessage(), arguments, buffer);
+        }
+    }
+
+    @Override
+    public String getFormat() {
+        return context.getMessage();
+    }
+
+    @Override
+    public Object[] getParameters() {
+        return arguments;
+    }
+
+    @Override
+    public Throwable getThrowable() {
+        // The cause is set on the log event itself.
+        return null;
+    }
+
+    // The template context is not serializable, so serialize the formatted message instead.
+    private Object writeReplace() {
+        return new SimpleMessage(getFormattedMessage());
+    }
+
+    @Override
+    public String toString() {
+        return getFormattedMessage();
+    }
+
+    /**
+     * Parses a template without formatting anything.
+     */
+    private static final class TemplateValidator extends MessageBuilder<Void> {
+        TemplateValidator(TemplateContext context) {
+            super(context);
+        }
+
+        @Override
+        public void addParameterImpl(int termStart, int termEnd, Parameter param) {
+        }
+
+        @Override
+        public Void buildImpl() {
+            return null;
+        }
+    }
+}
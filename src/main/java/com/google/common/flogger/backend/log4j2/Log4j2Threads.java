@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Helper to detect virtual threads without depending on a Java 21 class library.
+ *
+ * <p>Per-thread state (thread locals, cloned thread context stacks) is cheap for a bounded pool of
+ * platform threads, but with millions of short lived virtual threads every thread local entry costs
+ * an allocation and retains memory until the thread dies. Code on the hot path uses {@link
+ * #isVirtual(Thread)} to switch to carrier independent alternatives in that case.
+ */
+final class Log4j2Threads {
+    // Resolved once, null when running on a JDK without virtual threads (i.e. before Java 21).
+    @NullableDecl
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private Log4j2Threads() {
+    }
+
+    @NullableDecl
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup()
+                    .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the given thread is a virtual thread. This is always false before Java 21.
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable impossible) {
+            // Thread#isVirtual() does not throw.
+            return false;
+        }
+    }
+}
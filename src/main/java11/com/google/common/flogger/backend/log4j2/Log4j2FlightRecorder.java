@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 The Flogger Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.flogger.backend.log4j2;
+
+import com.google.common.flogger.LogSite;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.apache.logging.log4j.Level;
+
+/**
+ * Emits JDK Flight Recorder events for backend operations.
+ *
+ * <p>This is the Java 11 variant of the class. It emits a {@code FloggerLog} event per log statement
+ * (disabled unless enabled in the recording settings, since it is recorded for every log statement)
+ * and a periodic {@code FloggerCounters} event with the backend counters.
+ *
+ * <p>All use of {@code jdk.jfr} is confined to {@link Events}, which is only loaded by {@link
+ * #register()}. If the runtime lacks the {@code jdk.jfr} module, registration fails and this class
+ * keeps behaving like the Java 8 variant.
+ */
+final class Log4j2FlightRecorder {
+    // Set once the events are registered.
+    private static volatile boolean registered = false;
+
+    private Log4j2FlightRecorder() {
+    }
+
+    static void register() {
+        Events.register();
+        registered = true;
+    }
+
+    static boolean isLogEventEnabled() {
+        return registered && Events.isLogEventEnabled();
+    }
+
+    static void commitLogEvent(
+            String loggerName,
+            Level level,
+            LogSite logSite,
+            int formattedLength,
+            long formatNanos,
+            long dispatchNanos) {
+        if (registered) {
+            Events.commitLogEvent(loggerName, level, logSite, formattedLength, formatNanos, dispatchNanos);
+        }
+    }
+
+    private static final class Events {
+        private static final EventType LOG_EVENT_TYPE = EventType.getEventType(LogEvent.class);
+
+        static void register() {
+            FlightRecorder.addPeriodicEvent(CountersEvent.class, () -> {
+                CountersEvent event = new CountersEvent();
+                event.errors = Log4j2Counters.getErrors();
+                event.suppressedErrors = Log4j2Counters.getSuppressedErrors();
+                event.droppedEvents = Log4j2Counters.getDroppedEvents();
+                event.commit();
+            });
+        }
+
+        static boolean isLogEventEnabled() {
+            return LOG_EVENT_TYPE.isEnabled();
+        }
+
+        static void commitLogEvent(
+                String loggerName,
+                Level level,
+                LogSite logSite,
+                int formattedLength,
+                long formatNanos,
+                long dispatchNanos) {
+            LogEvent event = new LogEvent();
+            if (event.shouldCommit()) {
+                event.loggerName = loggerName;
+                event.level = level.name();
+                event.logSite =
+                        logSite.getClassName() + "." + logSite.getMethodName() + ":" + logSite.getLineNumber();
+                event.formattedLength = formattedLength;
+                event.formatDuration = formatNanos;
+                event.dispatchDuration = dispatchNanos;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("com.google.common.flogger.FloggerLog")
+    @Label("Flogger Log")
+    @Category({"Flogger", "Log4j2 Backend"})
+    @Description("A log statement handled by the Flogger log4j2 backend")
+    @StackTrace(false)
+    @Enabled(false)
+    private static final class LogEvent extends Event {
+        @Label("Logger")
+        String loggerName;
+
+        @Label("Level")
+        String level;
+
+        @Label("Log Site")
+        String logSite;
+
+        @Label("Formatted Length")
+        @Description("Length of the formatted message, or -1 if formatting was deferred")
+        int formattedLength;
+
+        @Label("Format Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long formatDuration;
+
+        @Label("Dispatch Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long dispatchDuration;
+    }
+
+    @Name("com.google.common.flogger.FloggerCounters")
+    @Label("Flogger Counters")
+    @Category({"Flogger", "Log4j2 Backend"})
+    @Description("Errors and dropped events of the Flogger log4j2 backend since startup")
+    @StackTrace(false)
+    @Period("10 s")
+    private static final class CountersEvent extends Event {
+        @Label("Errors")
+        long errors;
+
+        @Label("Suppressed Errors")
+        long suppressedErrors;
+
+        @Label("Dropped Events")
+        long droppedEvents;
+    }
+}
@@ -17,9 +17,11 @@
 package com.google.common.flogger.backend.log4j2;
 
 import com.google.common.flogger.LogContext;
+import com.google.common.flogger.LogSite;
 import com.google.common.flogger.MetadataKey;
 import com.google.common.flogger.backend.LogData;
 import com.google.common.flogger.backend.LoggerBackend;
+import com.google.common.flogger.backend.Metadata;
 import com.google.common.flogger.context.ScopedLoggingContext;
 import com.google.common.flogger.context.Tags;
 import com.google.common.flogger.grpc.GrpcContextDataProvider;
@@ -28,23 +30,39 @@ import com.google.common.flogger.testing.FakeLogData;
 import com.google.common.flogger.testing.FakeLogSite;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.Logger;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.filter.MarkerFilter;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
 import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
 import org.apache.logging.log4j.util.StringMap;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.apache.logging.log4j.Level.*;
 import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.junit.Assert.fail;
 
 public final class Log4j2Test {
@@ -150,6 +168,61 @@ public final class Log4j2Test {
         assertLogEntry(1, INFO, "Hello Foo Bar");
     }
 
+    @Test
+    public void testFormatLimits() {
+        int[] numbers = new int[1000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i + 1;
+        }
+        Log4j2FormatLimits.setLimits(logger.getName(), 10, 20);
+        try {
+            backend.log(FakeLogData.withPrintfStyle("a=%s b=%s", numbers, "abcdefghijklmnopqrstuvwxyz"));
+            backend.log(FakeLogData.withPrintfStyle("%s", Arrays.asList("a", "b")));
+            backend.log(FakeLogData.of("This literal message is too long"));
+        } finally {
+            Log4j2FormatLimits.removeLimits(logger.getName());
+        }
+        backend.log(FakeLogData.withPrintfStyle("%s", Arrays.asList(1, 2)));
+
+        assertLogCount(4);
+        assertLogEntry(0, INFO, "a=[1, 2, 3, ... b=abcde...");
+        assertLogEntry(1, INFO, "[a, b]");
+        assertLogEntry(2, INFO, "This literal message...");
+        assertLogEntry(3, INFO, "[1, 2]");
+    }
+
+    @Test
+    public void testStringBuilderFormattableArguments() {
+        StringBuilderFormattable formattable = buffer -> buffer.append("formatted");
+        StringBuilderFormattable broken = buffer -> {
+            buffer.append("partial");
+            throw new IllegalStateException("broken");
+        };
+        backend.log(FakeLogData.withPrintfStyle("%s %s %s", formattable, new StringBuilder("chars"), broken));
+
+        assertLogCount(1);
+        assertThat(getMessage(0)).startsWith("formatted chars {");
+        assertThat(getMessage(0)).contains("java.lang.IllegalStateException: broken}");
+        assertThat(getMessage(0)).doesNotContain("partial");
+    }
+
+    @Test
+    public void testTemplateMessage() {
+        LogData data = FakeLogData.withPrintfStyle("Hello %s %d %x", "World", 42, 255L);
+        assertThat(Log4j2TemplateMessage.canDefer(data)).isTrue();
+        assertThat(Log4j2TemplateMessage.canDefer(FakeLogData.withPrintfStyle("%s", new StringBuilder()))).isFalse();
+        assertThat(Log4j2TemplateMessage.canDefer(FakeLogData.of("literal"))).isFalse();
+        // Broken templates are formatted on the logging thread, where errors reach the error handler.
+        assertThat(Log4j2TemplateMessage.canDefer(FakeLogData.withPrintfStyle("broken %?X", 1))).isFalse();
+
+        Log4j2TemplateMessage message = Log4j2TemplateMessage.create(data, Log4j2FormatLimits.UNLIMITED);
+        StringBuilder buffer = new StringBuilder("prefix: ");
+        message.formatTo(buffer);
+        assertThat(buffer.toString()).isEqualTo("prefix: Hello World 42 ff");
+        assertThat(message.getFormattedMessage()).isEqualTo("Hello World 42 ff");
+        assertThat(message.getFormat()).isEqualTo("Hello %s %d %x");
+    }
+
     @Test
     public void testMetadata() {
         backend.log(
@@ -169,6 +242,29 @@ public final class Log4j2Test {
         assertLogEntry(0, INFO, "Foo='bar'", contextData);
     }
 
+    @Test
+    public void testMetadataKeySelection() {
+        Log4j2MetadataHandler.setAllowedKeys(Arrays.asList("count", "rep"));
+        Log4j2MetadataHandler.setDeniedKeys(Arrays.asList("rep"));
+        try {
+            backend.log(
+                    FakeLogData.withPrintfStyle("Foo='%s'", "bar")
+                            .addMetadata(COUNT_KEY, 23)
+                            .addMetadata(ID_KEY, "test_ID")
+                            .addMetadata(REPEATABLE_KEY, "foo")
+            );
+        } finally {
+            Log4j2MetadataHandler.setAllowedKeys(null);
+            Log4j2MetadataHandler.setDeniedKeys(Collections.emptyList());
+        }
+
+        assertLogCount(1);
+        assertThat(events.get(0).getContextData().toMap()).containsExactly("count", "23");
+        // The test configuration renders "%X{count}" and "%X{id}".
+        assertThat(Log4j2MetadataHandler.getReferencedKeys(logger.getContext().getConfiguration()))
+                .containsExactly("count", "id");
+    }
+
     @Test
     public void testScopedLoggingContext() {
         try (ScopedLoggingContext.LoggingContextCloseable ctx = GrpcContextDataProvider.getInstance()
@@ -206,6 +302,388 @@ public final class Log4j2Test {
 //                .run(() -> logger.atInfo().log("Should add tags here --> "));
     }
 
+    @Test
+    public void testTailBuffer() {
+        logger.setLevel(INFO);
+        java.util.logging.Level fine = java.util.logging.Level.FINE;
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = Log4j2TailBuffer.install(
+                GrpcContextDataProvider.getInstance().getContextApiSingleton().newContext())) {
+            assertThat(backend.isLoggable(fine)).isTrue();
+            backend.log(FakeLogData.of("discarded").setLevel(fine));
+            backend.log(FakeLogData.of("info"));
+        }
+        assertThat(backend.isLoggable(fine)).isFalse();
+        assertLogCount(1);
+
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = Log4j2TailBuffer.install(
+                GrpcContextDataProvider.getInstance().getContextApiSingleton().newContext()
+                        .withMetadata(COUNT_KEY, 23))) {
+            backend.log(FakeLogData.of("debug 1").setLevel(fine));
+            backend.log(FakeLogData.of("debug 2").setLevel(fine));
+            backend.log(FakeLogData.of("error").setLevel(java.util.logging.Level.SEVERE));
+            backend.log(FakeLogData.of("debug 3").setLevel(fine));
+        }
+        assertLogCount(5);
+        assertLogEntry(1, DEBUG, "debug 1");
+        assertLogEntry(2, DEBUG, "debug 2");
+        assertLogEntry(3, ERROR, "error");
+        assertLogEntry(4, DEBUG, "debug 3");
+        assertThat(events.get(1).getContextData().toMap()).containsExactly("count", "23");
+    }
+
+    @Test
+    public void testScopeBudget() {
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = Log4j2ScopeBudget.install(
+                GrpcContextDataProvider.getInstance().getContextApiSingleton().newContext()
+                        .withMetadata(COUNT_KEY, 23), 2, 1000)) {
+            for (int i = 0; i < 5; i++) {
+                backend.log(FakeLogData.withPrintfStyle("event %d", i));
+            }
+            assertLogCount(2);
+        }
+        assertLogCount(3);
+        assertLogEntry(2, WARN, "log budget exceeded (max events: 2, max characters: 1000), 3 suppressed");
+        assertThat(events.get(2).getContextData().toMap()).containsExactly("count", "23");
+
+        // The character budget is checked as well.
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = Log4j2ScopeBudget.install(
+                GrpcContextDataProvider.getInstance().getContextApiSingleton().newContext(), 100, 10)) {
+            backend.log(FakeLogData.of("more than ten characters"));
+            backend.log(FakeLogData.of("suppressed"));
+        }
+        assertLogCount(5);
+        assertThat(getMessage(4)).endsWith("1 suppressed");
+    }
+
+    @Test
+    public void testTagMarkers() {
+        AtomicInteger formatted = new AtomicInteger();
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                return "argument";
+            }
+        };
+        Filter filter = MarkerFilter.createFilter("noisy", Filter.Result.DENY, Filter.Result.NEUTRAL);
+        Configuration config = logger.getContext().getConfiguration();
+        config.addFilter(filter);
+        try {
+            try (ScopedLoggingContext.LoggingContextCloseable ctx = GrpcContextDataProvider.getInstance()
+                    .getContextApiSingleton()
+                    .newContext()
+                    .withTags(Tags.builder().addTag("noisy").addTag("baz", "bar").build())
+                    .install()) {
+                backend.log(FakeLogData.withPrintfStyle("dropped %s", argument));
+            }
+            assertThat(formatted.get()).isEqualTo(0);
+            assertLogCount(0);
+
+            try (ScopedLoggingContext.LoggingContextCloseable ctx = GrpcContextDataProvider.getInstance()
+                    .getContextApiSingleton()
+                    .newContext()
+                    .withTags(Tags.of("baz", "bar"))
+                    .install()) {
+                backend.log(FakeLogData.of("kept"));
+            }
+            assertLogCount(1);
+            Marker marker = events.get(0).getMarker();
+            assertThat(marker.isInstanceOf("noisy")).isFalse();
+            assertThat(marker.isInstanceOf("baz")).isTrue();
+            assertThat(marker.isInstanceOf("baz=bar")).isTrue();
+            assertThat(marker.isInstanceOf("baz=other")).isFalse();
+
+            backend.log(FakeLogData.withPrintfStyle("untagged %s", argument));
+            assertLogCount(2);
+            assertThat(events.get(1).getMarker()).isNull();
+        } finally {
+            config.removeFilter(filter);
+        }
+    }
+
+    @Test
+    public void testRedaction() {
+        Log4j2Redactor previous = Log4j2Redactor.current();
+        Log4j2Redactor.setDefault(Log4j2Redactor.builder()
+                .redactAfter("password=")
+                .redactAfter("token=")
+                .redactAfter("ghp_")
+                .redactCardNumbers()
+                .redactMetadataKey("id")
+                .build());
+        try {
+            backend.log(FakeLogData.withPrintfStyle("login password=%s as %s with %s, retry %s",
+                    "hunter2", "ghp_abc123", "4111 1111 1111 1111", "4111 1111 1111 1112")
+                    .addMetadata(ID_KEY, "user-7")
+                    .addMetadata(COUNT_KEY, 23));
+            // Literal template text is not redacted.
+            backend.log(FakeLogData.withPrintfStyle("token=constant %s", "x"));
+
+            // %fargs renders arguments without their template, so a prefix in the template masks them all.
+            StringBuilder out = new StringBuilder();
+            Log4j2ArgumentsConverter.newInstance(new String[0])
+                    .format(nativeEvent(FakeLogData.withPrintfStyle("login password=%s", "hunter2")), out);
+            out.append(' ');
+            Log4j2ArgumentsConverter.newInstance(new String[0]).format(nativeEvent(FakeLogData.of("token=abc123")), out);
+            assertThat(out.toString()).isEqualTo("[****] token=****");
+        } finally {
+            Log4j2Redactor.setDefault(previous);
+        }
+        assertLogCount(2);
+        assertLogEntry(0, INFO, "login password=**** as ghp_**** with **** **** **** 1111, retry 4111 1111 1111 1112");
+        assertThat(events.get(0).getContextData().toMap()).containsExactly("id", "****", "count", "23");
+        assertLogEntry(1, INFO, "token=constant x");
+    }
+
+    private Log4j2LogEvent nativeEvent(LogData logData) {
+        return Log4j2SimpleLogEvent.create(logger, logData, Log4j2FormatLimits.UNLIMITED)
+                .asNativeEvent(
+                        GrpcContextDataProvider.getInstance(), Thread.currentThread(), Log4j2ContextCapture.FULL);
+    }
+
+    @Test
+    public void testRedactionOfErrorsAndCutArguments() {
+        Log4j2Redactor previous = Log4j2Redactor.current();
+        Log4j2Redactor.setDefault(Log4j2Redactor.builder()
+                .redactAfter("password=")
+                .redactCardNumbers()
+                .redactMetadataKey("id")
+                .build());
+        try {
+            LogData data = FakeLogData.withPrintfStyle("login password=%s %?X", "hunter2").addMetadata(ID_KEY, "user-7");
+            try {
+                backend.log(data);
+                fail("expected ParseException");
+            } catch (ParseException expected) {
+                backend.handleError(expected, data);
+            }
+            Log4j2FormatLimits.setLimits(logger.getName(), 10, 1000);
+            try {
+                backend.log(FakeLogData.withPrintfStyle("card %s", "4111 1111 1111 1111"));
+            } finally {
+                Log4j2FormatLimits.removeLimits(logger.getName());
+            }
+        } finally {
+            Log4j2Redactor.setDefault(previous);
+        }
+        assertLogCount(2);
+        assertThat(getMessage(0)).contains("original arguments:\n    ****");
+        assertThat(getMessage(0)).contains("id: ****");
+        assertThat(getMessage(0)).doesNotContain("hunter2");
+        assertThat(getMessage(0)).doesNotContain("user-7");
+        // The cut card number fails the Luhn check, but is masked anyway.
+        assertLogEntry(1, INFO, "card **** **** ...");
+    }
+
+    @Test
+    public void testVirtualThreadLogging() throws Exception {
+        // Virtual threads exist since Java 21, while the build targets Java 8.
+        String version = System.getProperty("java.specification.version");
+        assumeTrue(!version.startsWith("1.") && Integer.parseInt(version) >= 21, "requires Java 21");
+        Method startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+
+        AtomicBoolean virtual = new AtomicBoolean();
+        Thread thread = (Thread) startVirtualThread.invoke(null, (Runnable) () -> {
+            virtual.set(Log4j2Threads.isVirtual(Thread.currentThread()));
+            backend.log(FakeLogData.of("virtual"));
+        });
+        thread.join();
+
+        assertThat(virtual.get()).isTrue();
+        assertThat(Log4j2Threads.isVirtual(Thread.currentThread())).isFalse();
+        assertLogEntry(0, INFO, "virtual");
+        assertThat(events.get(0).getThreadId()).isEqualTo(thread.getId());
+    }
+
+    @Test
+    public void testContextCapture() {
+        Log4j2ContextCapture.setCapture(logger.getName(), INFO, Log4j2ContextCapture.keys("id"));
+        Log4j2ContextCapture.setCapture(logger.getName(), DEBUG, Log4j2ContextCapture.NONE);
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = GrpcContextDataProvider.getInstance()
+                .getContextApiSingleton()
+                .newContext()
+                .withMetadata(COUNT_KEY, 23)
+                .withTags(Tags.of("foo", "bar"))
+                .install()) {
+            backend.log(FakeLogData.of("warn").setLevel(java.util.logging.Level.WARNING).addMetadata(ID_KEY, "a"));
+            backend.log(FakeLogData.of("info").addMetadata(ID_KEY, "b"));
+            backend.log(FakeLogData.of("debug").setLevel(java.util.logging.Level.FINE).addMetadata(ID_KEY, "c"));
+        } finally {
+            Log4j2ContextCapture.removeCaptures(logger.getName());
+        }
+        assertLogCount(3);
+        assertThat(events.get(0).getContextData().toMap()).containsExactly("count", "23", "id", "a");
+        assertThat(events.get(0).getContextStack().asList()).isNotEmpty();
+        assertThat(events.get(0).getThreadName()).isEqualTo(Thread.currentThread().getName());
+
+        assertThat(events.get(1).getContextData().toMap()).containsExactly("id", "b");
+        assertThat(events.get(1).getContextStack().asList()).isEmpty();
+
+        assertThat(events.get(2).getContextData().isEmpty()).isTrue();
+        assertThat(events.get(2).getContextStack().asList()).isEmpty();
+        assertThat(events.get(2).getThreadName()).isEmpty();
+    }
+
+    @Test
+    public void testLazyContextStackIgnoresReaderThread() {
+        Log4j2LogEvent event = new Log4j2LogEvent(
+                logger.getName(),
+                INFO,
+                new SimpleMessage("msg"),
+                null,
+                FakeLogData.of("msg"),
+                Metadata.empty(),
+                Tags.of("foo", "bar"),
+                Log4j2ContextCapture.FULL,
+                Log4j2FormatLimits.UNLIMITED,
+                Thread.currentThread());
+        // The stack is built when first read, which may happen on an appender thread with a context of its own.
+        ThreadContext.push("reader");
+        try {
+            assertThat(event.getContextStack().asList()).hasSize(1);
+            assertThat(event.getContextStack().asList()).doesNotContain("reader");
+            assertThat(ThreadContext.getImmutableStack().asList()).containsExactly("reader");
+        } finally {
+            ThreadContext.clearStack();
+        }
+    }
+
+    @Test
+    public void testBatchLogging() {
+        logger.setLevel(INFO);
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = GrpcContextDataProvider.getInstance()
+                .getContextApiSingleton()
+                .newContext()
+                .withMetadata(COUNT_KEY, 23)
+                .withTags(Tags.of("foo", "bar"))
+                .install()) {
+            Log4j2BatchLogger.forLogger(logger).log(Arrays.asList(
+                    FakeLogData.of("first"),
+                    FakeLogData.of("dropped").setLevel(java.util.logging.Level.FINE),
+                    FakeLogData.withPrintfStyle("last %d", 2).setLevel(java.util.logging.Level.WARNING)));
+        }
+        assertLogCount(2);
+        assertLogEntry(0, INFO, "first");
+        assertLogEntry(1, WARN, "last 2");
+        assertThat(events.get(0).isEndOfBatch()).isFalse();
+        assertThat(events.get(1).isEndOfBatch()).isTrue();
+        // Both events share the context data of the scope.
+        assertThat(events.get(0).getContextData()).isSameInstanceAs(events.get(1).getContextData());
+        assertThat(events.get(0).getContextData().toMap()).containsExactly("count", "23");
+        // And the same context stack, which therefore can't be modified.
+        ThreadContext.ContextStack contextStack = events.get(0).getContextStack();
+        assertThat(events.get(1).getContextStack()).isSameInstanceAs(contextStack);
+        try {
+            contextStack.push("modified");
+            fail("expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+            assertThat(contextStack.asList()).doesNotContain("modified");
+        }
+    }
+
+    @Test
+    public void testContextDataInjector() {
+        Log4j2ContextDataInjector injector = new Log4j2ContextDataInjector();
+        assertThat(injector.rawContextData().isEmpty()).isTrue();
+        try (ScopedLoggingContext.LoggingContextCloseable ctx = GrpcContextDataProvider.getInstance()
+                .getContextApiSingleton()
+                .newContext()
+                .withMetadata(COUNT_KEY, 23)
+                .install()
+        ) {
+            StringMap contextData = injector.injectContextData(null, new SortedArrayStringMap());
+            assertThat((Object) contextData.getValue("count")).isEqualTo(23);
+
+            backend.log(FakeLogData.of("first"));
+            backend.log(FakeLogData.of("second"));
+            // Events without log site metadata share the map of the scope.
+            assertThat(events.get(0).getContextData()).isSameInstanceAs(events.get(1).getContextData());
+            assertThat(events.get(0).getContextData()).isSameInstanceAs(injector.rawContextData());
+        }
+    }
+
+    @Test
+    public void testNativeEventContextCapture() {
+        LogData logData = FakeLogData.of("msg").addMetadata(ID_KEY, "a").addMetadata(COUNT_KEY, 23);
+        ThreadContext.push("writer");
+        Log4j2LogEvent none;
+        Log4j2LogEvent keys;
+        try {
+            none = new Log4j2LogEvent(logger.getName(), INFO, new SimpleMessage("msg"), null, logData,
+                    Metadata.empty(), Tags.of("foo", "bar"), Log4j2ContextCapture.NONE, Log4j2FormatLimits.UNLIMITED,
+                    Thread.currentThread());
+            keys = new Log4j2LogEvent(logger.getName(), INFO, new SimpleMessage("msg"), null, logData,
+                    Metadata.empty(), Tags.of("foo", "bar"), Log4j2ContextCapture.keys("id"),
+                    Log4j2FormatLimits.UNLIMITED, Thread.currentThread());
+        } finally {
+            ThreadContext.clearStack();
+        }
+        assertThat(none.getContextData().isEmpty()).isTrue();
+        assertThat(none.getContextStack().asList()).isEmpty();
+        assertThat(none.getThreadName()).isEmpty();
+
+        assertThat(keys.getContextData().toMap()).containsExactly("id", "a");
+        assertThat(keys.getContextStack().asList()).isEmpty();
+        assertThat(keys.getThreadName()).isEmpty();
+    }
+
+    @Test
+    public void testArgumentsConverterLimits() {
+        Log4j2FormatLimits.setLimits(logger.getName(), 4, 12);
+        try {
+            Log4j2FormatLimits limits = Log4j2FormatLimits.resolve(logger.getName());
+            LogData logData = FakeLogData.withPrintfStyle("%s %s %s", "abcdefgh", "ab", "abcdef");
+            Log4j2LogEvent event = Log4j2SimpleLogEvent.create(logger, logData, limits)
+                    .asNativeEvent(
+                            GrpcContextDataProvider.getInstance(), Thread.currentThread(), Log4j2ContextCapture.FULL);
+            StringBuilder out = new StringBuilder();
+            Log4j2ArgumentsConverter.newInstance(new String[0]).format(event, out);
+            // Each argument is cut at 4 characters, and the arguments as a whole at 12.
+            assertThat(out.toString()).isEqualTo("[abcd..., ab, ...]");
+
+            event = Log4j2SimpleLogEvent.create(logger, FakeLogData.of("abcdefghijklmnop"), limits)
+                    .asNativeEvent(
+                            GrpcContextDataProvider.getInstance(), Thread.currentThread(), Log4j2ContextCapture.FULL);
+            out.setLength(0);
+            Log4j2ArgumentsConverter.newInstance(new String[0]).format(event, out);
+            assertThat(out.toString()).isEqualTo("abcdefghijkl...");
+        } finally {
+            Log4j2FormatLimits.removeLimits(logger.getName());
+        }
+    }
+
+    @Test
+    public void testNativeEventConverters() {
+        FakeLogSite logSite = FakeLogSite.create("com.example.Foo", "bar", 42, "Foo.java");
+        LogData logData = FakeLogData.withPrintfStyle("Hello %s %d", "World", 7)
+                .setLogSite(logSite)
+                .addMetadata(COUNT_KEY, 23)
+                .addMetadata(REPEATABLE_KEY, "a")
+                .addMetadata(REPEATABLE_KEY, "b");
+        Log4j2LogEvent event = Log4j2SimpleLogEvent.create(logger, logData, Log4j2FormatLimits.UNLIMITED)
+                .asNativeEvent(
+                        GrpcContextDataProvider.getInstance(), Thread.currentThread(), Log4j2ContextCapture.FULL);
+
+        assertThat(event.getMessage().getFormattedMessage()).isEqualTo("Hello World 7");
+        assertThat(event.getSource().getLineNumber()).isEqualTo(42);
+        assertThat(event.getContextData().toMap()).containsEntry("count", "23");
+
+        StringBuilder out = new StringBuilder();
+        Log4j2LogSiteConverter.newInstance(new String[0]).format(event, out);
+        out.append(' ');
+        Log4j2MetadataConverter.newInstance(new String[] {"count"}).format(event, out);
+        out.append(' ');
+        Log4j2MetadataConverter.newInstance(new String[] {"rep"}).format(event, out);
+        out.append(' ');
+        Log4j2ArgumentsConverter.newInstance(new String[0]).format(event, out);
+        assertThat(out.toString()).isEqualTo("com.example.Foo.bar:42 23 a,b [World, 7]");
+
+        // Copies made for async logging keep the data visible to the converters.
+        out.setLength(0);
+        Log4j2MetadataConverter.newInstance(new String[] {"count"}).format(event.toImmutable(), out);
+        assertThat(out.toString()).isEqualTo("23");
+    }
+
     @Test
     public void testLevels() {
         backend.log(FakeLogData.of("finest").setLevel(java.util.logging.Level.FINEST));
@@ -242,6 +720,81 @@ public final class Log4j2Test {
         assertLogSite(2, "<class>", "<method>", -1, null);
     }
 
+    @Test
+    public void testTimestampPrecision() {
+        backend.log(FakeLogData.of("Hello World").setTimestampNanos(1_234_567_890_123_456_789L));
+        backend.log(FakeLogData.of("Before epoch").setTimestampNanos(-1L));
+
+        assertLogCount(2);
+        assertThat(events.get(0).getInstant().getEpochSecond()).isEqualTo(1_234_567_890L);
+        assertThat(events.get(0).getInstant().getNanoOfSecond()).isEqualTo(123_456_789);
+        assertThat(events.get(0).getTimeMillis()).isEqualTo(1_234_567_890_123L);
+        assertThat(events.get(1).getInstant().getEpochSecond()).isEqualTo(-1L);
+        assertThat(events.get(1).getInstant().getNanoOfSecond()).isEqualTo(999_999_999);
+    }
+
+    @Test
+    public void testLevelOverrides() {
+        Log4j2LevelOverrides overrides = Log4j2LevelOverrides.getInstance();
+        logger.setLevel(INFO);
+        try {
+            overrides.setLogSiteLevel(logger.getName(), "debugged", 42, "DEBUG");
+            assertThat(backend.isLoggable(java.util.logging.Level.FINE)).isTrue();
+            assertThat(backend.isLoggable(java.util.logging.Level.FINEST)).isFalse();
+
+            backend.log(FakeLogData.of("enabled site")
+                    .setLevel(java.util.logging.Level.FINE)
+                    .setLogSite(FakeLogSite.create(logger.getName(), "debugged", 42, null)));
+            backend.log(FakeLogData.of("other site")
+                    .setLevel(java.util.logging.Level.FINE)
+                    .setLogSite(FakeLogSite.create(logger.getName(), "debugged", 43, null)));
+
+            overrides.setLoggerLevel(Log4j2Test.class.getPackage().getName(), "ERROR");
+            backend.log(FakeLogData.of("silenced").setLevel(java.util.logging.Level.WARNING));
+            backend.log(FakeLogData.of("severe").setLevel(java.util.logging.Level.SEVERE));
+
+            overrides.clear();
+            backend.log(FakeLogData.of("warning").setLevel(java.util.logging.Level.WARNING));
+        } finally {
+            overrides.clear();
+        }
+
+        assertLogCount(3);
+        assertLogEntry(0, DEBUG, "enabled site");
+        assertLogEntry(1, ERROR, "severe");
+        assertLogEntry(2, WARN, "warning");
+    }
+
+    @Test
+    public void testLevelOverridesForNestedClassSites() {
+        Log4j2LevelOverrides overrides = Log4j2LevelOverrides.getInstance();
+        logger.setLevel(INFO);
+        // Log sites in nested and anonymous classes report their own class, but use the outer logger.
+        String nestedClass = logger.getName() + "$Nested";
+        try {
+            overrides.setLogSiteLevel(nestedClass, "debugged", 42, "DEBUG");
+            overrides.setLogSiteLevel(logger.getName() + "$1", "debugged", 7, "DEBUG");
+            backend.log(FakeLogData.of("nested site")
+                    .setLevel(java.util.logging.Level.FINE)
+                    .setLogSite(FakeLogSite.create(nestedClass, "debugged", 42, null)));
+            backend.log(FakeLogData.of("anonymous site")
+                    .setLevel(java.util.logging.Level.FINE)
+                    .setLogSite(FakeLogSite.create(logger.getName() + "$1", "debugged", 7, null)));
+            backend.log(FakeLogData.of("outer site")
+                    .setLevel(java.util.logging.Level.FINE)
+                    .setLogSite(FakeLogSite.create(logger.getName(), "debugged", 42, null)));
+        } finally {
+            overrides.clear();
+        }
+
+        assertLogCount(2);
+        assertLogEntry(0, DEBUG, "nested site");
+        assertLogEntry(1, DEBUG, "anonymous site");
+        assertThat(Log4j2LevelOverrides.isLoggerOfClass("com.example.Outer", "com.example.Outer$Inner$1")).isTrue();
+        assertThat(Log4j2LevelOverrides.isLoggerOfClass("com.example.Outer.Inner", "com.example.Outer$Inner")).isTrue();
+        assertThat(Log4j2LevelOverrides.isLoggerOfClass("com.example.Outer", "com.example.OuterFoo$1")).isFalse();
+    }
+
     @Test
     public void testErrorHandling() {
         LogData data = FakeLogData.withPrintfStyle("Hello %?X World", "ignored");
@@ -256,6 +809,443 @@ public final class Log4j2Test {
         }
     }
 
+    @Test
+    public void testErrorCircuitBreaker() {
+        FakeLogSite logSite = FakeLogSite.create(logger.getName(), "broken", uid.incrementAndGet(), null);
+        RuntimeException error = new IllegalStateException("broken");
+        long errors = Log4j2Counters.getErrors();
+        long suppressedErrors = Log4j2Counters.getSuppressedErrors();
+        for (int i = 0; i < 12; i++) {
+            backend.handleError(error, FakeLogData.of("broken").setLogSite(logSite).setTimestampNanos(i));
+        }
+        assertLogCount(10);
+        assertThat(Log4j2Counters.getErrors() - errors).isEqualTo(12);
+        assertThat(Log4j2Counters.getSuppressedErrors() - suppressedErrors).isEqualTo(2);
+
+        // The first error of the next window is rendered and reports the suppressed errors.
+        long nextWindow = TimeUnit.MINUTES.toNanos(2);
+        backend.handleError(error, FakeLogData.of("broken").setLogSite(logSite).setTimestampNanos(nextWindow));
+        assertLogCount(11);
+        assertThat(getMessage(10)).contains("suppressed errors at this log site: 2");
+    }
+
+    @Test
+    public void testErrorCircuitBreakerFlush() {
+        FakeLogSite logSite = FakeLogSite.create(logger.getName(), "flushed", uid.incrementAndGet(), null);
+        RuntimeException error = new IllegalStateException("broken");
+        for (int i = 0; i < 13; i++) {
+            backend.handleError(error, FakeLogData.of("broken").setLogSite(logSite).setTimestampNanos(i));
+        }
+        assertLogCount(10);
+
+        // Nothing is flushed while the window lasts, afterwards the count is reported once.
+        Log4j2ErrorCircuitBreaker.getInstance().flush(TimeUnit.SECONDS.toNanos(1));
+        assertLogCount(10);
+        Log4j2ErrorCircuitBreaker.getInstance().flush(TimeUnit.MINUTES.toNanos(2));
+        assertLogEntry(10, WARN, "suppressed errors at log site " + logger.getName() + ".flushed:"
+                + logSite.getLineNumber() + ": 3");
+        Log4j2ErrorCircuitBreaker.getInstance().flush(TimeUnit.MINUTES.toNanos(3));
+        assertLogCount(11);
+
+        // Flushed log sites are no longer tracked, a later error starts a new window.
+        assertThat(Log4j2ErrorCircuitBreaker.getInstance().isTracked(logSite)).isFalse();
+        long later = TimeUnit.MINUTES.toNanos(4);
+        backend.handleError(error, FakeLogData.of("broken").setLogSite(logSite).setTimestampNanos(later));
+        assertLogCount(12);
+        assertThat(getMessage(11)).doesNotContain("suppressed errors");
+        assertThat(Log4j2ErrorCircuitBreaker.getInstance().isTracked(logSite)).isTrue();
+
+        // Errors without a log site are always rendered.
+        for (int i = 0; i < 12; i++) {
+            backend.handleError(error, FakeLogData.of("broken").setLogSite(LogSite.INVALID).setTimestampNanos(i));
+        }
+        assertLogCount(24);
+    }
+
+    @Test
+    public void testStripedDispatch() throws InterruptedException {
+        Log4j2StripedDispatcher dispatcher =
+                new Log4j2StripedDispatcher(2, 16, 4, TimeUnit.MILLISECONDS.toNanos(1));
+        try {
+            for (int i = 0; i < 50; i++) {
+                dispatcher.dispatch(logger, Log4j2SimpleLogEvent
+                        .create(logger, FakeLogData.withPrintfStyle("event %d", i), Log4j2FormatLimits.UNLIMITED)
+                        .asLoggingEvent());
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (events.size() < 50 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        } finally {
+            dispatcher.close();
+        }
+
+        // Events of a single thread arrive in order, and the last one always ends a batch.
+        assertLogCount(50);
+        for (int i = 0; i < 50; i++) {
+            assertThat(getMessage(i)).isEqualTo("event " + i);
+        }
+        assertThat(events.get(49).isEndOfBatch()).isTrue();
+    }
+
+    @Test
+    public void testNonBlockingDispatch() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AbstractAppender slowAppender = new AbstractAppender("Slow Appender", null, null, true, null) {
+            @Override
+            public void append(LogEvent event) {
+                if (event.getMessage().getFormattedMessage().equals("slow")) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        slowAppender.start();
+        logger.addAppender(slowAppender);
+        Log4j2NonBlockingDispatcher dispatcher = new Log4j2NonBlockingDispatcher(2, 0, 0, 0);
+        try {
+            Thread holder = new Thread(() -> dispatcher.dispatch(logger, event(INFO, "slow")));
+            holder.start();
+            assertThat(blocked.await(10, TimeUnit.SECONDS)).isTrue();
+
+            long dropped = Log4j2Counters.getDroppedEvents();
+            // None of these block, the queue holds two events and evicts the least severe ones.
+            dispatcher.dispatch(logger, event(DEBUG, "debug"));
+            dispatcher.dispatch(logger, event(INFO, "info"));
+            dispatcher.dispatch(logger, event(WARN, "warn"));
+            dispatcher.dispatch(logger, event(ERROR, "error"));
+            dispatcher.dispatch(logger, event(DEBUG, "dropped"));
+            assertThat(Log4j2Counters.getDroppedEvents() - dropped).isEqualTo(3);
+
+            release.countDown();
+            holder.join();
+        } finally {
+            dispatcher.close();
+            logger.removeAppender(slowAppender);
+            slowAppender.stop();
+        }
+        // The holder of the lock writes the queued events after its own, in order.
+        assertLogCount(3);
+        assertThat(getMessage(0)).isEqualTo("slow");
+        assertThat(getMessage(1)).isEqualTo("warn");
+        assertThat(getMessage(2)).isEqualTo("error");
+    }
+
+    @Test
+    public void testNonBlockingDispatchSharesLaneOfAdditiveChain() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AbstractAppender slowAppender = new AbstractAppender("Slow Appender", null, null, true, null) {
+            @Override
+            public void append(LogEvent event) {
+                if (event.getMessage().getFormattedMessage().equals("slow")) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        slowAppender.start();
+        logger.addAppender(slowAppender);
+        // An additive child configuration of its own, which also writes into the appenders of the parent.
+        Logger child = (Logger) LogManager.getLogger(logger.getName() + ".child");
+        AbstractAppender childAppender = new AbstractAppender("Child Appender", null, null, true, null) {
+            @Override
+            public void append(LogEvent event) {
+            }
+        };
+        childAppender.start();
+        child.addAppender(childAppender);
+        assertThat(child.get()).isNotSameInstanceAs(logger.get());
+        Log4j2NonBlockingDispatcher dispatcher = new Log4j2NonBlockingDispatcher(2, 0, 0, 0);
+        try {
+            Thread holder = new Thread(() -> dispatcher.dispatch(logger, event(INFO, "slow")));
+            holder.start();
+            assertThat(blocked.await(10, TimeUnit.SECONDS)).isTrue();
+
+            // The child shares the slow appender, so its event is queued instead of blocking.
+            Thread childThread = new Thread(() -> dispatcher.dispatch(child, event(WARN, "child")));
+            childThread.start();
+            childThread.join(TimeUnit.SECONDS.toMillis(10));
+            assertThat(childThread.isAlive()).isFalse();
+            assertLogCount(0);
+
+            release.countDown();
+            holder.join();
+        } finally {
+            dispatcher.close();
+            child.removeAppender(childAppender);
+            childAppender.stop();
+            logger.removeAppender(slowAppender);
+            slowAppender.stop();
+        }
+        assertLogCount(2);
+        assertThat(getMessage(0)).isEqualTo("slow");
+        assertThat(getMessage(1)).isEqualTo("child");
+    }
+
+    @Test
+    public void testNonBlockingDispatchDrainsQuietLanes() {
+        Log4j2NonBlockingDispatcher dispatcher = new Log4j2NonBlockingDispatcher(1, 0, 0, 0);
+        AtomicInteger fed = new AtomicInteger();
+        // The first two events written each queue another one from a different thread while the lock is held.
+        AbstractAppender feedingAppender = new AbstractAppender("Feeding Appender", null, null, true, null) {
+            @Override
+            public void append(LogEvent event) {
+                int n = fed.incrementAndGet();
+                if (n > 2) {
+                    return;
+                }
+                Thread feeder = new Thread(() -> dispatcher.dispatch(logger, event(ERROR, "fed " + n)));
+                feeder.start();
+                try {
+                    feeder.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        feedingAppender.start();
+        logger.addAppender(feedingAppender);
+        try {
+            dispatcher.dispatch(logger, event(INFO, "first"));
+            // The budget of the dispatch ran out, and no other thread logs through this lane.
+            assertLogCount(2);
+
+            dispatcher.drainQueued();
+            assertLogCount(3);
+            assertThat(getMessage(2)).isEqualTo("fed 2");
+        } finally {
+            logger.removeAppender(feedingAppender);
+            feedingAppender.stop();
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingDispatchIsBounded() throws InterruptedException {
+        Log4j2NonBlockingDispatcher dispatcher = new Log4j2NonBlockingDispatcher(2, 0, 0, 0);
+        AtomicInteger fed = new AtomicInteger();
+        // Every event written queues another one from a different thread while the lock is held, which
+        // would keep the lock holder writing until the feeder stops if draining was unbounded.
+        AbstractAppender feedingAppender = new AbstractAppender("Feeding Appender", null, null, true, null) {
+            @Override
+            public void append(LogEvent event) {
+                int n = fed.incrementAndGet();
+                if (n > 50) {
+                    return;
+                }
+                Thread feeder = new Thread(() -> dispatcher.dispatch(logger, event(INFO, "fed " + n)));
+                feeder.start();
+                try {
+                    feeder.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        feedingAppender.start();
+        logger.addAppender(feedingAppender);
+        try {
+            dispatcher.dispatch(logger, event(INFO, "first"));
+
+            // The own event plus at most the capacity of queued events, the last one fed is still queued.
+            assertLogCount(3);
+            assertThat(getMessage(0)).isEqualTo("first");
+            assertThat(getMessage(1)).isEqualTo("fed 1");
+            assertThat(getMessage(2)).isEqualTo("fed 2");
+        } finally {
+            logger.removeAppender(feedingAppender);
+            feedingAppender.stop();
+            dispatcher.close();
+        }
+    }
+
+    private LogEvent event(Level level, String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger.getName())
+                .setLevel(level)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    @Test
+    public void testLoadShedding() {
+        long second = TimeUnit.SECONDS.toNanos(1);
+        Log4j2LoadShedder shedder = new Log4j2LoadShedder(1000, Collections.emptyList(), 0, second, 0);
+        for (int i = 0; i < 100; i++) {
+            shedder.recordLatency(10_000, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertThat(shedder.getShedLevel()).isNull();
+
+        // Shedding rises one step at a time, at most once per hold time.
+        shedder.evaluate(2 * second, false, false);
+        assertThat(shedder.getShedLevel()).isEqualTo(DEBUG);
+        shedder.evaluate(2 * second + second / 2, false, false);
+        assertThat(shedder.getShedLevel()).isEqualTo(DEBUG);
+        shedder.evaluate(3 * second + second / 10, false, false);
+        assertThat(shedder.getShedLevel()).isEqualTo(INFO);
+
+        // Without new samples the latency decays, and shedding falls back below half the threshold.
+        shedder.evaluate(4 * second + second / 5, false, false);
+        assertThat(shedder.getShedLevel()).isEqualTo(INFO);
+        shedder.evaluate(5 * second + second / 3, false, false);
+        assertThat(shedder.getShedLevel()).isEqualTo(DEBUG);
+        shedder.evaluate(6 * second + second / 2, false, false);
+        assertThat(shedder.getShedLevel()).isNull();
+
+        // Heap pressure alone also sheds.
+        shedder.evaluate(8 * second, true, true);
+        assertThat(shedder.getShedLevel()).isEqualTo(DEBUG);
+    }
+
+    @Test
+    public void testLogMetrics() {
+        String template = "processed %d items in %d ms (" + logger.getName() + ")";
+        Log4j2LogMetrics.registerTemplate(template);
+        try {
+            backend.log(FakeLogData.withPrintfStyle(template, 3, 10));
+            backend.log(FakeLogData.withPrintfStyle(template, 5, 20));
+            backend.log(FakeLogData.withPrintfStyle("processed %d other items", 7));
+
+            // Only the unregistered template is written.
+            assertLogCount(1);
+            String summary = Log4j2LogMetrics.summarize();
+            assertThat(summary).contains("\"" + template + "\": count=2");
+            assertThat(summary).contains("arg0={count=2, sum=8.0, min=3.0, max=5.0, p50<4.0, p99<8.0}");
+            assertThat(summary).contains("arg1={count=2, sum=30.0, min=10.0, max=20.0, p50<16.0, p99<32.0}");
+            // Aggregates are reset after each summary.
+            assertThat(Log4j2LogMetrics.summarize()).isNull();
+
+            backend.log(FakeLogData.withPrintfStyle(template, 1, 1));
+        } finally {
+            Log4j2LogMetrics.unregisterTemplate(template);
+        }
+        // Unregistering drops the aggregates of the template.
+        assertThat(Log4j2LogMetrics.summarize()).isNull();
+    }
+
+    @Test
+    public void testLogMetricsForLiteralLogSite() {
+        FakeLogSite logSite = FakeLogSite.create(logger.getName(), "literal", uid.incrementAndGet(), null);
+        Log4j2LogMetrics.registerLogSite(logSite);
+        try {
+            backend.log(FakeLogData.of("request 1 done").setLogSite(logSite));
+            backend.log(FakeLogData.of("request 2 done").setLogSite(logSite));
+
+            // Distinct literals from one log site share one aggregate instead of one per message.
+            assertLogCount(0);
+            String summary = Log4j2LogMetrics.summarize();
+            assertThat(summary).contains(
+                    "\"<literal> " + logger.getName() + ":" + logSite.getLineNumber() + "\": count=2");
+            assertThat(summary).doesNotContain("request 1 done");
+        } finally {
+            Log4j2LogMetrics.unregisterLogSite(logSite);
+        }
+        assertThat(Log4j2LogMetrics.summarize()).isNull();
+    }
+
+    @Test
+    public void testLogTap() {
+        List<Log4j2LogTap.Entry> received = new ArrayList<>();
+        Log4j2LogTap.Subscription[] subscription = new Log4j2LogTap.Subscription[1];
+        // Signals are delivered on the calling thread, the buffer keeps only the two newest entries.
+        Log4j2LogTap.subscribe(new Log4j2LogTap.Subscriber() {
+            @Override
+            public void onSubscribe(Log4j2LogTap.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(Log4j2LogTap.Entry entry) {
+                if (entry.getLoggerName().equals(logger.getName())) {
+                    received.add(entry);
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                fail(error.toString());
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }, 2, Log4j2LogTap.OverflowPolicy.DROP_OLDEST, Runnable::run);
+        try {
+            backend.log(FakeLogData.withPrintfStyle("first %d", 1));
+            backend.log(FakeLogData.withPrintfStyle("second %d", 2));
+            backend.log(FakeLogData.withPrintfStyle("third %d", 3));
+            // Nothing is delivered without demand.
+            assertThat(received).isEmpty();
+
+            subscription[0].request(10);
+            assertThat(received).hasSize(2);
+            assertThat(received.get(0).getFormattedMessage()).isEqualTo("second 2");
+            assertThat(received.get(1).getLogData().getArguments()).asList().containsExactly(3);
+
+            backend.log(FakeLogData.withPrintfStyle("fourth %d", 4));
+            assertThat(received).hasSize(3);
+            // The tap does not affect normal logging.
+            assertLogCount(4);
+        } finally {
+            subscription[0].cancel();
+        }
+    }
+
+    @Test
+    public void testLogTapRejectedDrain() {
+        List<Throwable> errors = new ArrayList<>();
+        AtomicInteger received = new AtomicInteger();
+        Log4j2LogTap.Subscription[] subscription = new Log4j2LogTap.Subscription[1];
+        // Runs the first drain (delivering onSubscribe) and rejects all later ones.
+        AtomicBoolean started = new AtomicBoolean();
+        Log4j2LogTap.subscribe(new Log4j2LogTap.Subscriber() {
+            @Override
+            public void onSubscribe(Log4j2LogTap.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(Log4j2LogTap.Entry entry) {
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                errors.add(error);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }, 2, Log4j2LogTap.OverflowPolicy.DROP_NEWEST, runnable -> {
+            if (started.getAndSet(true)) {
+                throw new RejectedExecutionException("shut down");
+            }
+            runnable.run();
+        });
+        backend.log(FakeLogData.withPrintfStyle("first %d", 1));
+        subscription[0].request(10);
+
+        // The rejection cancels the subscription instead of failing the caller or stalling the tap.
+        assertThat(errors).hasSize(1);
+        assertThat(errors.get(0)).isInstanceOf(RejectedExecutionException.class);
+        backend.log(FakeLogData.withPrintfStyle("second %d", 2));
+        subscription[0].request(10);
+        assertThat(errors).hasSize(1);
+        assertThat(received.get()).isEqualTo(0);
+        assertLogCount(2);
+    }
+
     @Test
     public void testWithThrown() {
         Throwable cause = new Throwable("Original Cause");
@@ -267,7 +1257,8 @@ public final class Log4j2Test {
 
     private static final class CapturingAppender extends AbstractAppender {
         static final String NAME = "Capturing Appender";
-        private final List<LogEvent> events = new ArrayList<>();
+        // Synchronized, since events may be appended by a dispatcher thread.
+        private final List<LogEvent> events = Collections.synchronizedList(new ArrayList<>());
 
         CapturingAppender() {
             super(NAME, null, PatternLayout.createDefaultLayout(), true, null);